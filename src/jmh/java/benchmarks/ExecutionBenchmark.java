@@ -0,0 +1,74 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans synthetic columns whose terms pass with a controlled selectivity, using the branching and no-branch plans
+ * that put every term in one group, and the plan the optimizer picks. Reported per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutionBenchmark {
+
+    private static final int ROWS = 1 << 20;
+
+    @Param({"4"})
+    int n;
+
+    @Param({"0.01", "0.1", "0.3", "0.5", "0.7", "0.9", "0.99"})
+    double selectivity;
+
+    @Param({"BRANCH", "NO_BRANCH", "OPTIMAL"})
+    String plan;
+
+    @Param({"compiled", "interpreted"})
+    String executor;
+
+    private boolean[][] t;
+    private int[][] o;
+    private int[] answer;
+    private Project.Scan scan;
+
+    @Setup
+    public void setUp() throws Throwable {
+        List<Double> selectivities = new ArrayList<>(Collections.nCopies(n, selectivity));
+        Random random = new Random(42);
+        t = new boolean[n][];
+        o = new int[n][];
+        for (int i = 0; i < n; i++) {
+            t[i] = Project.table(selectivity);
+            o[i] = Project.column(ROWS, random);
+        }
+        answer = new int[ROWS];
+
+        Object costModel = Project.costModel(OptimizerBenchmark.config());
+        Object subSet;
+        switch (plan) {
+            case "BRANCH":
+                subSet = Project.singleGroup(selectivities, costModel, false);
+                break;
+            case "NO_BRANCH":
+                subSet = Project.singleGroup(selectivities, costModel, true);
+                break;
+            default:
+                subSet = Project.optimize(Project.optimizer(selectivities, costModel));
+        }
+        scan = executor.equals("compiled") ? Project.compiled(subSet) : Project.interpreted(subSet);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int scan() throws Throwable {
+        return scan.run(t, o, ROWS, answer);
+    }
+}
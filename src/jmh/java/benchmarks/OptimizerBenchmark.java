@@ -0,0 +1,72 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the optimizer scales with the number of terms.
+ *
+ * optimize runs a complete optimization, the same work Main does for every query; setup only builds and prices the
+ * subset table, so the difference between the two is algorithm 4.11 itself. The largest n take seconds per operation,
+ * narrow them down with -p n=... for quick runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptimizerBenchmark {
+
+    @Param({"2", "4", "6", "8", "10", "12", "14", "16", "18", "20"})
+    int n;
+
+    @Param({"UNIFORM", "SELECTIVE", "UNPREDICTABLE", "REPEATED"})
+    Selectivities distribution;
+
+    private List<Double> selectivities;
+    private double[] values;
+    private Object costModel;
+
+    @Setup
+    public void setUp() throws Throwable {
+        selectivities = distribution.generate(n);
+        values = selectivities.stream().mapToDouble(Double::doubleValue).toArray();
+        costModel = Project.costModel(config());
+    }
+
+    /**
+     * @return The cost model in config.txt, or the same constants if it is not in the working directory.
+     */
+    static Properties config() {
+        Properties costs = new Properties();
+        try (FileInputStream in = new FileInputStream("config.txt")) {
+            costs.load(in);
+        } catch (IOException e) {
+            costs.setProperty("r", "1");
+            costs.setProperty("t", "2");
+            costs.setProperty("l", "1");
+            costs.setProperty("m", "16");
+            costs.setProperty("a", "2");
+            costs.setProperty("f", "4");
+        }
+        return costs;
+    }
+
+    @Benchmark
+    public Object optimize() throws Throwable {
+        return Project.call(Project.optimizer(selectivities, costModel));
+    }
+
+    @Benchmark
+    public Object setup() throws Throwable {
+        Object subSets = Project.generateSubSets(values, costModel);
+        Project.initializeCosts(subSets);
+        return subSets;
+    }
+}
@@ -0,0 +1,125 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+/**
+ * Access to the optimizer from the benchmarks.
+ *
+ * JMH refuses benchmarks in the default package and Java cannot import classes from the default package, where the
+ * optimizer lives, so the few entry points the benchmarks need are looked up reflectively once and called through
+ * method handles.
+ */
+final class Project {
+
+    /**
+     * A plan ready to scan columnar data, see Selection.run.
+     */
+    interface Scan {
+        int run(boolean[][] t, int[][] o, int rows, int[] answer) throws Throwable;
+    }
+
+    private static final MethodHandle NEW_OPTIMIZER;
+    private static final MethodHandle PARSE_COST_MODEL;
+    private static final MethodHandle GENERATE_SUBSETS;
+    private static final MethodHandle INITIALIZE_COSTS;
+    private static final MethodHandle OPTIMIZE;
+    private static final MethodHandle SINGLE_GROUP;
+    private static final MethodHandle NEW_EXECUTOR;
+    private static final MethodHandle COMPILE;
+    private static final MethodHandle RUN;
+    private static final MethodHandle TABLE;
+    private static final MethodHandle COLUMN;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> optimizer = Class.forName("Optimizer");
+            Class<?> costModel = Class.forName("CostModel");
+            Class<?> subSet = Class.forName("Optimizer$SubSet");
+            Class<?> subSets = Class.forName("[LOptimizer$SubSet;");
+            Class<?> executor = Class.forName("PlanExecutor");
+            Class<?> compiler = Class.forName("PlanCompiler");
+            Class<?> selection = Class.forName("Selection");
+
+            NEW_OPTIMIZER = lookup.unreflectConstructor(optimizer.getConstructor(List.class, costModel));
+            PARSE_COST_MODEL = unreflect(optimizer, "parseCostModel", Properties.class);
+            GENERATE_SUBSETS = unreflect(optimizer, "generateSubSets", double[].class, costModel);
+            INITIALIZE_COSTS = unreflect(optimizer, "initializeCosts", subSets);
+            OPTIMIZE = unreflect(optimizer, "optimize");
+            SINGLE_GROUP = unreflect(optimizer, "singleGroup", List.class, costModel, boolean.class);
+            NEW_EXECUTOR = lookup.unreflectConstructor(executor.getConstructor(subSet));
+            COMPILE = unreflect(compiler, "compile", subSet);
+            RUN = unreflect(selection, "run", boolean[][].class, int[][].class, int.class, int[].class);
+            TABLE = unreflect(executor, "table", double.class);
+            COLUMN = unreflect(executor, "column", int.class, java.util.Random.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle unreflect(Class<?> owner, String name, Class<?>... parameters)
+            throws ReflectiveOperationException {
+        Method method = owner.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    private Project() {
+    }
+
+    static Object costModel(Properties props) throws Throwable {
+        return PARSE_COST_MODEL.invoke(props);
+    }
+
+    static Object optimizer(List<Double> selectivities, Object costModel) throws Throwable {
+        return NEW_OPTIMIZER.invoke(selectivities, costModel);
+    }
+
+    static Object call(Object optimizer) throws Exception {
+        return ((Callable<?>) optimizer).call();
+    }
+
+    static Object generateSubSets(double[] selectivities, Object costModel) throws Throwable {
+        return GENERATE_SUBSETS.invoke(selectivities, costModel);
+    }
+
+    static void initializeCosts(Object subSets) throws Throwable {
+        INITIALIZE_COSTS.invoke(subSets);
+    }
+
+    static Object optimize(Object optimizer) throws Throwable {
+        return OPTIMIZE.invoke(optimizer);
+    }
+
+    static Object singleGroup(List<Double> selectivities, Object costModel, boolean noBranch) throws Throwable {
+        return SINGLE_GROUP.invoke(selectivities, costModel, noBranch);
+    }
+
+    static Scan interpreted(Object plan) throws Throwable {
+        return scan(NEW_EXECUTOR.invoke(plan));
+    }
+
+    static Scan compiled(Object plan) throws Throwable {
+        return scan(COMPILE.invoke(plan));
+    }
+
+    private static Scan scan(Object selection) {
+        MethodHandle run = RUN.bindTo(selection)
+                .asType(MethodType.methodType(int.class, boolean[][].class, int[][].class, int.class, int[].class));
+        return (t, o, rows, answer) -> (int) run.invokeExact(t, o, rows, answer);
+    }
+
+    static boolean[] table(double selectivity) throws Throwable {
+        return (boolean[]) TABLE.invoke(selectivity);
+    }
+
+    static int[] column(int rows, java.util.Random random) throws Throwable {
+        return (int[]) COLUMN.invoke(rows, random);
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The selectivity distributions the optimizer benchmarks are run under.
+ */
+public enum Selectivities {
+    /** Uniform in [0, 1], rounded to two digits like the values in query.txt. */
+    UNIFORM {
+        @Override
+        double next(Random random) {
+            return Math.round(random.nextDouble() * 100) / 100.0;
+        }
+    },
+    /** Mostly selective terms, which favours branching plans. */
+    SELECTIVE {
+        @Override
+        double next(Random random) {
+            return Math.round(Math.pow(random.nextDouble(), 4) * 100) / 100.0;
+        }
+    },
+    /** Terms close to 0.5, where branches are hardest to predict. */
+    UNPREDICTABLE {
+        @Override
+        double next(Random random) {
+            return Math.round((0.4 + random.nextDouble() * 0.2) * 100) / 100.0;
+        }
+    },
+    /** A handful of repeated values, like 0.8 0.8 0.9 0.7 0.7 0.7 in query.txt. */
+    REPEATED {
+        @Override
+        double next(Random random) {
+            return (6 + random.nextInt(4)) / 10.0;
+        }
+    };
+
+    abstract double next(Random random);
+
+    /**
+     * @return n selectivities drawn from this distribution with a fixed seed.
+     */
+    List<Double> generate(int n) {
+        Random random = new Random(n);
+        List<Double> selectivities = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            selectivities.add(next(random));
+        }
+        return selectivities;
+    }
+}
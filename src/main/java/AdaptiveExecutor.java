@@ -0,0 +1,336 @@
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a plan like {@link PlanExecutor} while checking the selectivities it was optimized for against the data, and
+ * replaces it with a better plan when they drift.
+ *
+ * Rows are scanned in batches. In every batch one row in {@link #SAMPLE_EVERY} is sampled: every term is evaluated on
+ * it, whether or not the plan would reach it, so the pass rate of each term is observed without the bias of the plan's
+ * own short-circuiting, along with how often each branch of the plan is taken. Every {@link #MIN_SAMPLES} samples the
+ * pass rates are folded into exponentially smoothed selectivity estimates, and the running plan is priced at them. If
+ * that predicted cost has moved away from the cost the plan was optimized for by more than the threshold, the query is
+ * optimized again for the estimates on a background thread. The scan does not wait: the new plan is picked up at the
+ * next batch boundary.
+ *
+ * A single thread runs the scans; the statistics may be read from any thread.
+ */
+public class AdaptiveExecutor implements Selection, AutoCloseable {
+
+    /**
+     * Number of rows scanned between two checks for a new plan.
+     */
+    static final int BATCH_ROWS = 4096;
+
+    /**
+     * One row in this many is sampled.
+     */
+    static final int SAMPLE_EVERY = 16;
+
+    /**
+     * Number of samples the estimates are updated from at a time.
+     */
+    static final int MIN_SAMPLES = 256;
+
+    /**
+     * Weight of the newest pass rates in the smoothed estimates.
+     */
+    static final double ALPHA = 0.25;
+
+    /**
+     * Relative change of the predicted cost of the running plan that makes it optimized again.
+     */
+    static final double THRESHOLD = 0.05;
+
+    /**
+     * A plan, ready to run, with the selectivities it was optimized for.
+     */
+    private static final class Planned {
+
+        final Plan plan;
+        final PlanExecutor executor;
+        final int[][] branches;         // The groups of the plan, the no-branch group last.
+        final double[] selectivities;
+
+        Planned(Plan plan, double[] selectivities) {
+            this.plan = plan;
+            this.executor = new PlanExecutor(plan);
+            this.branches = new int[plan.groupCount()][];
+            for (int group = 0; group < branches.length; group++) {
+                branches[group] = plan.group(group);
+            }
+            this.selectivities = selectivities;
+        }
+    }
+
+    private final double[] costs;               // The cost of the function of each term, or null.
+    private final CostModel costModel;
+    private final int exactTerms;
+    private final double alpha;
+    private final double threshold;
+    private final ExecutorService planner;
+    private final boolean ownsPlanner;
+
+    private volatile Planned current;
+    private final AtomicReference<Planned> next = new AtomicReference<>();
+    private volatile boolean planning;          // Whether a new plan is being optimized.
+
+    private final double[] estimates;           // Smoothed selectivity of each term; guarded by this.
+    private final int[] passed;                 // Samples each term passed since the last update.
+    private int samples;                        // Samples since the last update.
+    private long[] reached;                     // Samples that reached each branch of the running plan.
+    private long[] taken;                       // Samples that passed each branch of the running plan.
+
+    private volatile long rows;
+    private volatile long sampled;
+    private volatile long replans;
+    private volatile long swaps;
+    private double improvement;                 // Sum over swaps of the predicted cost saved per row; guarded by this.
+
+    /**
+     * Plans with the exact optimizer up to {@link Main#EXACT_TERMS} terms and re-plans on a thread of its own.
+     *
+     * @param selectivities The selectivity of each term, as estimated before the scan.
+     * @param costModel The cost model to optimize with.
+     */
+    public AdaptiveExecutor(double[] selectivities, CostModel costModel) throws Exception {
+        this(selectivities, null, costModel);
+    }
+
+    /**
+     * Plans with the exact optimizer up to {@link Main#EXACT_TERMS} terms and re-plans on a thread of its own.
+     *
+     * @param selectivities The selectivity of each term, as estimated before the scan.
+     * @param costs The cost of the function of each term, or null if every term costs f. Costs are not observed, so
+     * every re-plan keeps them.
+     * @param costModel The cost model to optimize with.
+     */
+    public AdaptiveExecutor(double[] selectivities, double[] costs, CostModel costModel) throws Exception {
+        this(selectivities, costs, costModel, Main.EXACT_TERMS, ALPHA, THRESHOLD, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "adaptive-planner");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * @param selectivities The selectivity of each term, as estimated before the scan.
+     * @param costs The cost of the function of each term, or null if every term costs f.
+     * @param costModel The cost model to optimize with.
+     * @param exactTerms Queries with more terms are planned by {@link HeuristicOptimizer}, as in {@link Main}.
+     * @param alpha Weight of the newest pass rates in the smoothed estimates, between 0 and 1.
+     * @param threshold Relative change of the predicted cost of the running plan that makes it optimized again.
+     * @param planner Runs the optimizations; it is not shut down by {@link #close()}.
+     */
+    public AdaptiveExecutor(double[] selectivities, double[] costs, CostModel costModel, int exactTerms, double alpha,
+                            double threshold, ExecutorService planner) throws Exception {
+        this(selectivities, costs, costModel, exactTerms, alpha, threshold, planner, false);
+    }
+
+    private AdaptiveExecutor(double[] selectivities, double[] costs, CostModel costModel, int exactTerms, double alpha,
+                             double threshold, ExecutorService planner, boolean ownsPlanner) throws Exception {
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("alpha must be in (0, 1], got " + alpha);
+        }
+        this.costs = costs == null ? null : costs.clone();
+        this.costModel = costModel;
+        this.exactTerms = exactTerms;
+        this.alpha = alpha;
+        this.threshold = threshold;
+        this.planner = planner;
+        this.ownsPlanner = ownsPlanner;
+        this.estimates = selectivities.clone();
+        this.passed = new int[selectivities.length];
+        install(new Planned(Main.plan(selectivities.clone(), this.costs, costModel, exactTerms), selectivities.clone()));
+    }
+
+    private synchronized void install(Planned planned) {
+        current = planned;
+        reached = new long[planned.plan.groupCount()];
+        taken = new long[planned.plan.groupCount()];
+    }
+
+    @Override
+    public int run(boolean[][] t, int[][] o, int rows, int[] answer) {
+        int j = 0;
+        for (int from = 0; from < rows; from += BATCH_ROWS) {
+            Planned swapped = next.getAndSet(null);
+            if (swapped != null) {
+                Planned replaced = current;
+                install(swapped);
+                recordSwap(replaced, swapped);
+            }
+
+            int to = Math.min(rows, from + BATCH_ROWS);
+            j = current.executor.run(t, o, from, to, answer, j);
+            sample(t, o, from, to);
+        }
+        this.rows += rows;
+        return j;
+    }
+
+    private synchronized void recordSwap(Planned replaced, Planned swapped) {
+        double gain = replaced.plan.costAt(swapped.selectivities) - swapped.plan.cost();
+        if (!replaced.plan.toC().equals(swapped.plan.toC())) {
+            swaps++;
+            improvement += Math.max(0.0, gain);
+        }
+    }
+
+    /**
+     * Evaluates every term on the sampled rows of a batch and updates the estimates once enough samples are in.
+     */
+    private synchronized void sample(boolean[][] t, int[][] o, int from, int to) {
+        int[][] branches = current.branches;
+        int first = (from + SAMPLE_EVERY - 1) / SAMPLE_EVERY * SAMPLE_EVERY;
+        for (int i = first; i < to; i += SAMPLE_EVERY) {
+            for (int term = 0; term < passed.length; term++) {
+                passed[term] += t[term][o[term][i]] ? 1 : 0;
+            }
+            // a row reaches a branch when every branch before it passed
+            for (int group = 0; group < branches.length; group++) {
+                reached[group]++;
+                boolean pass = true;
+                for (int term : branches[group]) {
+                    pass &= t[term][o[term][i]];
+                }
+                if (!pass) {
+                    break;
+                }
+                taken[group]++;
+            }
+            samples++;
+            sampled++;
+        }
+
+        if (samples >= MIN_SAMPLES) {
+            for (int term = 0; term < estimates.length; term++) {
+                estimates[term] += alpha * ((double) passed[term] / samples - estimates[term]);
+                passed[term] = 0;
+            }
+            samples = 0;
+            checkDrift();
+        }
+    }
+
+    /**
+     * Starts a new optimization if the running plan, priced at the estimates, has drifted past the threshold.
+     */
+    private void checkDrift() {
+        Plan plan = current.plan;
+        if (planning || Math.abs(plan.costAt(estimates) - plan.cost()) <= threshold * plan.cost()) {
+            return;
+        }
+
+        double[] selectivities = estimates.clone();
+        planning = true;
+        try {
+            planner.submit(() -> {
+                try {
+                    next.set(new Planned(Main.plan(selectivities, costs, costModel, exactTerms), selectivities));
+                    replans++;
+                } finally {
+                    planning = false;
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            // the planner was shut down: keep running the current plan
+            planning = false;
+        }
+    }
+
+    /**
+     * @return The plan the next batch will run, unless a new one is swapped in first.
+     */
+    public Plan plan() {
+        return current.plan;
+    }
+
+    /**
+     * @return The smoothed selectivity of each term.
+     */
+    public synchronized double[] estimates() {
+        return estimates.clone();
+    }
+
+    /**
+     * @return The largest difference between a smoothed selectivity and the one the running plan was optimized for.
+     */
+    public synchronized double drift() {
+        double[] planned = current.selectivities;
+        double drift = 0.0;
+        for (int term = 0; term < estimates.length; term++) {
+            drift = Math.max(drift, Math.abs(estimates[term] - planned[term]));
+        }
+        return drift;
+    }
+
+    /**
+     * @return For each branch of the running plan, the fraction of the sampled rows reaching it that passed it, or
+     * NaN if none reached it yet.
+     */
+    public synchronized double[] branchRates() {
+        double[] rates = new double[reached.length];
+        for (int group = 0; group < rates.length; group++) {
+            rates[group] = reached[group] == 0 ? Double.NaN : (double) taken[group] / reached[group];
+        }
+        return rates;
+    }
+
+    /**
+     * @return The number of rows scanned.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of rows sampled.
+     */
+    public long sampled() {
+        return sampled;
+    }
+
+    /**
+     * @return The number of optimizations run because of drift.
+     */
+    public long replans() {
+        return replans;
+    }
+
+    /**
+     * @return The number of times a different plan was swapped in.
+     */
+    public long swaps() {
+        return swaps;
+    }
+
+    /**
+     * @return The predicted cost per row saved by the swaps, summed over them: at each swap, the old plan's cost at
+     * the new estimates minus the new plan's.
+     */
+    public synchronized double improvement() {
+        return improvement;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "adaptive: " + rows + " rows, " + sampled + " sampled, drift " + drift() + ", " + replans
+                + " replans, " + swaps + " swaps, improvement " + improvement + " per row, estimates "
+                + Arrays.toString(estimates) + ", branch rates " + Arrays.toString(branchRates());
+    }
+
+    /**
+     * Stops the background thread, if this executor started it.
+     */
+    @Override
+    public void close() {
+        if (ownsPlanner) {
+            planner.shutdown();
+        }
+    }
+}
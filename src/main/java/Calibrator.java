@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Measures the six constants of the cost model on the current host.
+ *
+ * Each constant is the difference between small scan loops that only differ in the operation it prices, measured per
+ * row in nanoseconds:
+ *
+ * <pre>
+ * base     x += o1[i]                                       loop + r
+ * access   x += o1[i] + o2[i]                               loop + 2r
+ * apply    x += f1[o1[i]]                                   loop + r + f
+ * and      x += f1[o1[i]] &amp; f2[o2[i]]                       loop + 2r + 2f + l
+ * write    x += o1[i]; answer[j++] = i                      loop + r + a
+ * sorted   if (f1[o1[i]] != 0) answer[j++] = i   half pass, in order   loop + r + f + t + a/2
+ * random   if (f1[o1[i]] != 0) answer[j++] = i   half pass, at random  loop + r + f + t + a/2 + m/2
+ * </pre>
+ *
+ * The loops are run in rounds and every round yields one estimate of each constant, so the constants are reported
+ * with a 95% confidence interval over the rounds. Since the optimizer only compares costs, the constants are written
+ * in nanoseconds, which makes the cost of a plan its predicted time per row.
+ */
+public class Calibrator {
+
+    static final String[] NAMES = {"r", "t", "l", "m", "a", "f"};
+
+    /**
+     * Smallest value written for a constant, so that noise never yields a zero or negative cost.
+     */
+    static final double MIN_COST = 0.01;
+
+    private static final int DOMAIN = 1024;
+
+    private static volatile long sink; // Keeps the JIT from discarding the loops.
+
+    private final int rows;
+    private final int rounds;
+
+    private final int[] o1;
+    private final int[] o2;
+    private final int[] sorted;  // Same values as o1, in increasing order.
+    private final int[] f1;      // Passes for half of the domain.
+    private final int[] f2;
+    private final int[] answer;
+
+    public Calibrator(int rows, int rounds) {
+        this.rows = rows;
+        this.rounds = rounds;
+
+        Random random = new Random(42);
+        o1 = new int[rows];
+        o2 = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            o1[i] = random.nextInt(DOMAIN);
+            o2[i] = random.nextInt(DOMAIN);
+        }
+        sorted = o1.clone();
+        Arrays.sort(sorted);
+        f1 = new int[DOMAIN];
+        f2 = new int[DOMAIN];
+        for (int v = 0; v < DOMAIN / 2; v++) {
+            f1[v] = 1;
+            f2[v] = 1;
+        }
+        answer = new int[rows];
+    }
+
+    /**
+     * Runs the measurements.
+     *
+     * @return samples[c][round] is the estimate of constant NAMES[c] in one round, in nanoseconds.
+     */
+    public double[][] measure() {
+        // let the JIT compile every loop before anything is recorded
+        for (int round = 0; round < 5; round++) {
+            sample();
+        }
+
+        double[][] samples = new double[NAMES.length][rounds];
+        for (int round = 0; round < rounds; round++) {
+            double[] sample = sample();
+            for (int c = 0; c < NAMES.length; c++) {
+                samples[c][round] = sample[c];
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Times every loop once and derives one estimate of each constant.
+     */
+    private double[] sample() {
+        double base = time(this::base);
+        double access = time(this::access);
+        double apply = time(this::apply);
+        double and = time(this::and);
+        double write = time(this::write);
+        double inOrder = time(() -> branch(sorted));
+        double atRandom = time(() -> branch(o1));
+        return constants(base, access, apply, and, write, inOrder, atRandom);
+    }
+
+    /**
+     * Solves the loop table of the class comment for the constants.
+     *
+     * @return r, t, l, m, a and f, in the order of {@link #NAMES}.
+     */
+    static double[] constants(double base, double access, double apply, double and, double write, double inOrder,
+                              double atRandom) {
+        double r = access - base;
+        double f = apply - base;
+        // and - 2 * apply leaves l minus one loop overhead, and 2 * base - access is one loop overhead
+        double l = and - 2 * apply + 2 * base - access;
+        double a = write - base;
+        double t = inOrder - apply - a / 2;
+        double m = 2 * (atRandom - inOrder);
+        return new double[]{r, t, l, m, a, f};
+    }
+
+    private interface Loop {
+        long run();
+    }
+
+    /**
+     * @return Nanoseconds per row of one run of a loop.
+     */
+    private double time(Loop loop) {
+        long start = System.nanoTime();
+        sink += loop.run();
+        return (double) (System.nanoTime() - start) / rows;
+    }
+
+    private long base() {
+        long x = 0;
+        for (int i = 0; i < rows; i++) {
+            x += o1[i];
+        }
+        return x;
+    }
+
+    private long access() {
+        long x = 0;
+        for (int i = 0; i < rows; i++) {
+            x += o1[i] + o2[i];
+        }
+        return x;
+    }
+
+    private long apply() {
+        long x = 0;
+        for (int i = 0; i < rows; i++) {
+            x += f1[o1[i]];
+        }
+        return x;
+    }
+
+    private long and() {
+        long x = 0;
+        for (int i = 0; i < rows; i++) {
+            x += f1[o1[i]] & f2[o2[i]];
+        }
+        return x;
+    }
+
+    private long write() {
+        long x = 0;
+        int j = 0;
+        for (int i = 0; i < rows; i++) {
+            x += o1[i];
+            answer[j++] = i;
+        }
+        return x + j;
+    }
+
+    private long branch(int[] o) {
+        int j = 0;
+        for (int i = 0; i < rows; i++) {
+            if (f1[o[i]] != 0) {
+                answer[j++] = i;
+            }
+        }
+        return j;
+    }
+
+    static double mean(double[] samples) {
+        double sum = 0;
+        for (double sample : samples) {
+            sum += sample;
+        }
+        return sum / samples.length;
+    }
+
+    /**
+     * @return Half the width of the 95% confidence interval of the mean, using the normal approximation.
+     */
+    static double confidence(double[] samples) {
+        if (samples.length < 2) {
+            return Double.NaN;
+        }
+        double mean = mean(samples);
+        double squares = 0;
+        for (double sample : samples) {
+            squares += (sample - mean) * (sample - mean);
+        }
+        return 1.96 * Math.sqrt(squares / (samples.length - 1)) / Math.sqrt(samples.length);
+    }
+
+    /**
+     * Writes the measured constants in the format of config.txt, so that {@link Optimizer#parseCostModel} loads them.
+     *
+     * @param samples The result of {@link #measure()}.
+     * @param file The file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    static void write(double[][] samples, Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("# Cost model calibrated on " + host() + " at " + new Date() + ", in nanoseconds per row.");
+            for (int c = 0; c < NAMES.length; c++) {
+                out.println(String.format("# %s: %.4f +- %.4f (95%% confidence)",
+                        NAMES[c], mean(samples[c]), confidence(samples[c])));
+            }
+            for (int c = 0; c < NAMES.length; c++) {
+                out.println(NAMES[c] + " = " + Math.max(MIN_COST, mean(samples[c])));
+            }
+        }
+    }
+
+    private static String host() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "an unknown host";
+        }
+    }
+
+    /**
+     * Usage: Calibrator [output-file [rows [rounds]]]
+     */
+    public static void main(String[] args) throws IOException {
+        Path file  = Paths.get(args.length > 0 ? args[0] : "calibrated.txt");
+        int rows   = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        double[][] samples = new Calibrator(rows, rounds).measure();
+        for (int c = 0; c < NAMES.length; c++) {
+            System.out.println(String.format("%s = %8.4f ns  +- %.4f", NAMES[c], mean(samples[c]), confidence(samples[c])));
+        }
+        write(samples, file);
+        System.out.println("written to " + file);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.Serializable;
+
+/**
+ * The machine-dependent constants of the cost model from the paper. Instances are immutable, so a single cost model
+ * can be shared by any number of optimizations running at the same time.
+ *
+ * Every formula takes e, the amount by which the functions of the terms cost more than k * f in total. It is 0 unless
+ * terms have costs of their own, and adding it leaves the paper's formulas bit for bit unchanged in that case.
+ */
+public final class CostModel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final double r; // the cost of accessing an array element rj[i] in order to perform operations on it
+    final double t; // the cost of performing an if test
+    final double l; // the cost of performing a logical “and”
+    final double m; // the cost of a branch misprediction
+    final double a; // the cost of writing an answer to the answer array and incrementing the answer array counter
+    final double f; // the cost of applying function f to its argument
+    final double v; // the cost per row of one term of a no-branch group evaluated on SIMD lanes, infinite without SIMD
+
+    public CostModel(double a, double f, double l, double m, double r, double t) {
+        this(a, f, l, m, r, t, Double.POSITIVE_INFINITY);
+    }
+
+    public CostModel(double a, double f, double l, double m, double r, double t, double v) {
+        this.a = a;
+        this.f = f;
+        this.l = l;
+        this.m = m;
+        this.r = r;
+        this.t = t;
+        this.v = v;
+    }
+
+    /**
+     * @return The cost of a no-branch term over k terms whose functions cost e more than k * f.
+     */
+    double noBranchCost(int k, double e) {
+        return k * r + (k - 1) * l + f * k + e + a;
+    }
+
+    /**
+     * @return The cost of a no-branch term over k terms that is evaluated many rows at a time on SIMD lanes.
+     */
+    double vectorCost(int k, double e) {
+        return k * v + e + a;
+    }
+
+    /**
+     * @return The cost of a branching &amp;-term over k terms that pass with probability p.
+     */
+    double logicalAndCost(int k, double e, double p) {
+        double q = p <= 0.5 ? p : 1.0 - p;
+        return k * r + (k - 1) * l + k * f + e + t + m * q + p * a;
+    }
+
+    /**
+     * @return The cost of evaluating an &amp;-term over k terms and its if test, without mispredictions or the answer.
+     */
+    double fixedCost(int k, double e) {
+        return k * r + (k - 1) * l + k * f + e + t;
+    }
+
+    /**
+     * @return The cost of "S' &amp;&amp; S", where the &amp;-term S' has k1 terms that cost e1 more than k1 * f and
+     * pass with probability p1, and the plan for S costs c2.
+     */
+    double combinedCost(int k1, double e1, double p1, double c2) {
+        double q = Math.min(p1, 1.0 - p1);
+        return fixedCost(k1, e1) + m * q + p1 * c2;
+    }
+
+    /**
+     * @param costs The cost of the function of each term, or null if every term costs f.
+     * @return How much more than f the function of each term costs, or null if none does.
+     */
+    double[] extraCosts(double[] costs) {
+        if (costs == null) {
+            return null;
+        }
+        double[] extra = new double[costs.length];
+        for (int i = 0; i < costs.length; i++) {
+            extra[i] = costs[i] - f;
+        }
+        return extra;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CostModel)) {
+            return false;
+        }
+        CostModel other = (CostModel) o;
+        return Double.compare(r, other.r) == 0
+                && Double.compare(t, other.t) == 0
+                && Double.compare(l, other.l) == 0
+                && Double.compare(m, other.m) == 0
+                && Double.compare(a, other.a) == 0
+                && Double.compare(f, other.f) == 0
+                && Double.compare(v, other.v) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Double.hashCode(r);
+        result = 31 * result + Double.hashCode(t);
+        result = 31 * result + Double.hashCode(l);
+        result = 31 * result + Double.hashCode(m);
+        result = 31 * result + Double.hashCode(a);
+        result = 31 * result + Double.hashCode(f);
+        result = 31 * result + Double.hashCode(v);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        String costs = "r = " + r + ", t = " + t + ", l = " + l + ", m = " + m + ", a = " + a + ", f = " + f;
+        return Double.isInfinite(v) ? costs : costs + ", v = " + v;
+    }
+}
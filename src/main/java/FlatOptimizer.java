@@ -0,0 +1,339 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Algorithm 4.11 over a struct-of-arrays subset table, for queries too large for one {@link Optimizer.SubSet} object
+ * per subset.
+ *
+ * Every subset is identified by its mask, which indexes four flat arrays:
+ *
+ * <pre>
+ * p          double   product of the selectivities of its terms
+ * c          double   best cost found so far
+ * left       int      mask of the left child of its best plan, 0 for a single &amp;-term; the right child is the rest
+ * leftMost   int      mask of the first &amp;-term of its best plan, filled in once the plan is final
+ * </pre>
+ *
+ * That is {@link #BYTES_PER_SUBSET} bytes per subset, 6.4 GB for 28 terms, against roughly 60 bytes for a SubSet
+ * object and its table slot. k is the bit count of the mask and the no-branch flag is recomputed from k and p, so
+ * neither is stored. The best plan is rebuilt into SubSet objects by following the left masks, and only for the
+ * subsets it uses.
+ *
+ * Subsets are visited in the same order as {@link Optimizer.Enumeration#SUBMASKS} and the same cost formulas are
+ * applied, so plans and costs are identical to the object-based optimizer. With
+ * {@link Optimizer.Enumeration#PARALLEL_WAVES} every subset is instead reduced from all the pairs whose union it is, one
+ * cardinality wave at a time across a ForkJoinPool, with the same tie-breaking, so the plans are the same again. The
+ * waves scan ranges of masks for their cardinality instead of keeping a list of them, so they take no memory beyond
+ * the table.
+ */
+public class FlatOptimizer implements Callable<Plan> {
+
+    /**
+     * Bytes the table needs for every subset: two doubles and two ints.
+     */
+    static final int BYTES_PER_SUBSET = 8 + 8 + 4 + 4;
+
+    /**
+     * Roughly how many pairs a single ForkJoin task of a parallel wave should visit before it stops splitting.
+     */
+    private static final long LEAF_PAIRS = 1 << 14;
+
+    private final double[] selectivities;
+    private final CostModel costModel;
+    private final double[] fixedCost;   // Indexed by k, for terms that all cost f.
+
+    private final double[] p;
+    private final double[] c;
+    private final int[] left;
+    private final int[] leftMost;
+    private final double[] e;           // How much more than k * f the functions of a subset cost; null without term costs.
+    private final boolean simd;         // Whether the single group of all terms is priced on SIMD lanes.
+    private final Optimizer.Enumeration enumeration;
+    private final ForkJoinPool pool;    // Runs the waves of Enumeration.PARALLEL_WAVES.
+
+    public FlatOptimizer(double[] selectivities, CostModel costModel) {
+        this(selectivities, null, costModel);
+    }
+
+    public FlatOptimizer(double[] selectivities, double[] costs, CostModel costModel) {
+        this(selectivities, costs, costModel, Optimizer.Enumeration.SUBMASKS, ForkJoinPool.commonPool());
+    }
+
+    public FlatOptimizer(double[] selectivities, double[] costs, CostModel costModel,
+                         Optimizer.Enumeration enumeration) {
+        this(selectivities, costs, costModel, enumeration, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param selectivities The selectivity of each term.
+     * @param costs The cost of the function of each term, or null if every term costs f. With costs, the table takes
+     * another 8 bytes per subset.
+     * @param costModel The cost model to optimize with.
+     * @param enumeration {@link Optimizer.Enumeration#SUBMASKS} or {@link Optimizer.Enumeration#PARALLEL_WAVES}.
+     * @param pool Runs the waves of {@link Optimizer.Enumeration#PARALLEL_WAVES}.
+     */
+    public FlatOptimizer(double[] selectivities, double[] costs, CostModel costModel,
+                         Optimizer.Enumeration enumeration, ForkJoinPool pool) {
+        int n = selectivities.length;
+        if (n > Optimizer.MAX_TERMS) {
+            throw new IllegalArgumentException("Cannot optimize more than " + Optimizer.MAX_TERMS + " terms, got " + n);
+        }
+        if (enumeration == Optimizer.Enumeration.ALL_PAIRS) {
+            throw new IllegalArgumentException("FlatOptimizer only enumerates disjoint pairs, not " + enumeration);
+        }
+        this.selectivities = selectivities;
+        this.costModel = costModel;
+        this.enumeration = enumeration;
+        this.pool = pool;
+
+        fixedCost = new double[n + 1];
+        for (int k = 1; k <= n; k++) {
+            fixedCost[k] = costModel.fixedCost(k, 0.0);
+        }
+
+        double[] extra = costModel.extraCosts(costs);
+        p = new double[1 << n];
+        c = new double[1 << n];
+        left = new int[1 << n];
+        leftMost = new int[1 << n];
+        e = extra == null ? null : new double[1 << n];
+
+        p[0] = 1.0;
+        for (int mask = 1; mask < p.length; mask++) {
+            // multiplying in the highest term last keeps the product in index order, as generateSubSets does
+            int highest = 31 - Integer.numberOfLeadingZeros(mask);
+            p[mask] = p[mask ^ (1 << highest)] * selectivities[highest];
+            if (e != null) {
+                e[mask] = e[mask ^ (1 << highest)] + extra[highest];
+            }
+
+            int k = Integer.bitCount(mask);
+            c[mask] = Math.min(costModel.noBranchCost(k, e(mask)), costModel.logicalAndCost(k, e(mask), p[mask]));
+        }
+
+        // as in Optimizer.initializeCosts, only the whole query can be one vectorized no-branch term
+        int full = p.length - 1;
+        simd = n > 0 && costModel.vectorCost(n, e(full)) < c[full];
+        if (simd) {
+            c[full] = costModel.vectorCost(n, e(full));
+        }
+    }
+
+    private double e(int mask) {
+        return e == null ? 0.0 : e[mask];
+    }
+
+    private double fixedCost(int mask, int k) {
+        return e == null ? fixedCost[k] : costModel.fixedCost(k, e[mask]);
+    }
+
+    public FlatOptimizer(List<Double> selectivities, CostModel costModel) {
+        this(Optimizer.toArray(selectivities), costModel);
+    }
+
+    /**
+     * @param n The number of terms.
+     * @return The bytes the subset table of a query with n terms takes.
+     */
+    static long tableBytes(int n) {
+        return (long) BYTES_PER_SUBSET << n;
+    }
+
+    @Override
+    public Plan call() throws Exception {
+        return new Plan(optimize(), selectivities, null);
+    }
+
+    /**
+     * Runs algorithm 4.11 without rendering the result.
+     *
+     * @return The optimal plan for all terms.
+     */
+    Optimizer.SubSet optimize() {
+        int n = selectivities.length;
+        int full = p.length - 1;
+
+        if (enumeration == Optimizer.Enumeration.PARALLEL_WAVES) {
+            for (int k = 1; k <= n; k++) {
+                // C(n, k) of the 2^n masks are in the wave, with about 2^k pairs each
+                double pairsPerMask = binomial(n, k) * Math.pow(2, k - n);
+                pool.invoke(new Wave(1, full + 1, k, pairsPerMask));
+            }
+            return plan(full);
+        }
+
+        // subsets by increasing cardinality and, within one, by decreasing mask, like Optimizer.visitOrder: the
+        // complements of the subsets with n - k terms come in decreasing order when those come in increasing order
+        for (int k = 1; k <= n; k++) {
+            int complement = (1 << (n - k)) - 1;
+            while (true) {
+                visit(full ^ complement, full);
+                if (complement == 0) {
+                    break;
+                }
+                int lowest = complement & -complement;
+                int ripple = complement + lowest;
+                int next = (((ripple ^ complement) >>> 2) / lowest) | ripple;
+                if (next > full) {
+                    break;
+                }
+                complement = next;
+            }
+        }
+        return plan(full);
+    }
+
+    /**
+     * Visits S once its plan is final: records its first &amp;-term and combines it with every disjoint S'.
+     */
+    private void visit(int s, int full) {
+        leftMost[s] = left[s] == 0 ? s : leftMost[left[s]];
+
+        double p2 = p[leftMost[s]];
+        double fixedCost2 = fixedCost(leftMost[s], Integer.bitCount(leftMost[s]));
+        double cost = c[s];
+
+        int complement = full & ~s;
+        for (int sPrime = complement; sPrime != 0; sPrime = (sPrime - 1) & complement) {
+            double p1 = p[sPrime];
+            int k1 = Integer.bitCount(sPrime);
+            double fixedCost1 = fixedCost(sPrime, k1);
+
+            // lemma 4.8, then lemma 4.9 when S' is selective, exactly as SubSet.lemma48 and SubSet.lemma49
+            boolean lemma48 = p2 <= p1 && ((p2 - 1) / fixedCost2) < ((p1 - 1) / fixedCost1);
+            if (lemma48 || (p1 <= 0.5 && p2 <= p1 && fixedCost2 < fixedCost1)) {
+                continue;
+            }
+
+            double combined = costModel.combinedCost(k1, e(sPrime), p1, cost);
+            int union = s | sPrime;
+            if (combined < c[union]) {
+                c[union] = combined;
+                left[union] = sPrime;
+            }
+        }
+    }
+
+    /**
+     * Finds the best split of one subset by pulling every (S', S) pair whose union it is, and records its first
+     * &amp;-term. Ties are broken the way {@link #visit} breaks them: the candidate whose S is visited first wins.
+     *
+     * @param target The mask of the subset to reduce. Every proper subset of it must already be final.
+     */
+    private void reduce(int target) {
+        double bestC = c[target];
+        int bestS = 0;
+        for (int s = (target - 1) & target; s != 0; s = (s - 1) & target) {
+            int sPrime = target ^ s;
+            double p1 = p[sPrime];
+            int k1 = Integer.bitCount(sPrime);
+            double fixedCost1 = fixedCost(sPrime, k1);
+            double p2 = p[leftMost[s]];
+            double fixedCost2 = fixedCost(leftMost[s], Integer.bitCount(leftMost[s]));
+
+            boolean lemma48 = p2 <= p1 && ((p2 - 1) / fixedCost2) < ((p1 - 1) / fixedCost1);
+            if (lemma48 || (p1 <= 0.5 && p2 <= p1 && fixedCost2 < fixedCost1)) {
+                continue;
+            }
+
+            double combined = costModel.combinedCost(k1, e(sPrime), p1, c[s]);
+            if (combined < bestC || (combined == bestC && bestS != 0 && Optimizer.visitedBefore(s, bestS))) {
+                bestC = combined;
+                bestS = s;
+            }
+        }
+
+        if (bestS != 0) {
+            c[target] = bestC;
+            left[target] = target ^ bestS;
+        }
+        leftMost[target] = left[target] == 0 ? target : leftMost[left[target]];
+    }
+
+    /**
+     * Reduces every subset of one cardinality in a range of masks, splitting the range across the pool.
+     */
+    private class Wave extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;             // First mask, inclusive.
+        private final int to;               // Last mask, exclusive.
+        private final int k;                // Cardinality of the subsets to reduce.
+        private final double pairsPerMask;  // Pairs visited per mask of the range, on average.
+
+        Wave(int from, int to, int k, double pairsPerMask) {
+            this.from = from;
+            this.to = to;
+            this.k = k;
+            this.pairsPerMask = pairsPerMask;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1 || (to - from) * pairsPerMask <= LEAF_PAIRS) {
+                for (int mask = from; mask < to; mask++) {
+                    if (Integer.bitCount(mask) == k) {
+                        reduce(mask);
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Wave(from, middle, k, pairsPerMask), new Wave(middle, to, k, pairsPerMask));
+        }
+    }
+
+    private static double binomial(int n, int k) {
+        double binomial = 1.0;
+        for (int i = 1; i <= k; i++) {
+            binomial = binomial * (n - k + i) / i;
+        }
+        return binomial;
+    }
+
+    /**
+     * Rebuilds the best plan of a subset into SubSet objects by following the left masks.
+     */
+    private Optimizer.SubSet plan(int mask) {
+        Optimizer.SubSet plan = new Optimizer.SubSet();
+        plan.mask = mask;
+        plan.k = Integer.bitCount(mask);
+        plan.p = p[mask];
+        plan.e = e(mask);
+        plan.c = c[mask];
+        plan.costModel = costModel;
+        plan.b = plan.noBranchCost() < plan.logicalAndCost();
+        if (simd && mask == p.length - 1 && left[mask] == 0) {
+            plan.b = true;
+            plan.simd = true;
+        }
+        if (left[mask] != 0) {
+            plan.L = plan(left[mask]);
+            plan.R = plan(mask ^ left[mask]);
+        }
+        return plan;
+    }
+
+    /**
+     * Optimizes a single query given on the command line and prints its plan.
+     *
+     * Usage: FlatOptimizer config-file selectivity...
+     */
+    public static void main(String[] args) throws IOException {
+        Properties costs = new Properties();
+        costs.load(new FileInputStream(args[0]));
+
+        double[] selectivities = new double[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            selectivities[i - 1] = Double.parseDouble(args[i]);
+        }
+        System.out.println(new FlatOptimizer(selectivities, Optimizer.parseCostModel(costs)).optimize()
+                .optimalAsString(selectivities, null));
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.stream.IntStream;
+
+/**
+ * Plans queries too large for algorithm 4.11 in polynomial time.
+ *
+ * Terms are ranked by (p - 1) / fixedCost, the metric lemma 4.8 compares, so the most selective terms for their cost
+ * come first. The ranked sequence is then split into consecutive groups: every group but the last is a branching
+ * &amp;-term and the groups are joined with &amp;&amp;, while the last one is either a branching &amp;-term or a
+ * no-branch term added to j. The cheapest split is found with a dynamic program over the O(n^2) possible groups using
+ * the cost formulas of algorithm 4.11, so the plan is priced and printed like one found by {@link Optimizer}.
+ */
+public class HeuristicOptimizer implements Callable<Plan> {
+
+    /**
+     * Largest number of terms a plan can hold: subsets are identified by long masks.
+     */
+    static final int MAX_TERMS = 63;
+
+    private final double[] selectivities;
+    private final double[] extra;       // How much more than f the function of each term costs, or null.
+    private final CostModel costModel;
+
+    public HeuristicOptimizer(double[] selectivities, CostModel costModel) {
+        this(selectivities, null, costModel);
+    }
+
+    /**
+     * @param selectivities The selectivity of each term.
+     * @param costs The cost of the function of each term, or null if every term costs f.
+     * @param costModel The cost model to plan with.
+     */
+    public HeuristicOptimizer(double[] selectivities, double[] costs, CostModel costModel) {
+        if (selectivities.length > MAX_TERMS) {
+            throw new IllegalArgumentException("Cannot plan more than " + MAX_TERMS + " terms, got " + selectivities.length);
+        }
+        this.selectivities = selectivities;
+        this.extra = costModel.extraCosts(costs);
+        this.costModel = costModel;
+    }
+
+    public HeuristicOptimizer(List<Double> selectivities, CostModel costModel) {
+        this(Optimizer.toArray(selectivities), costModel);
+    }
+
+    @Override
+    public Plan call() throws Exception {
+        return new Plan(optimize(), selectivities, null);
+    }
+
+    /**
+     * @return The cheapest plan that evaluates the terms in rank order.
+     */
+    Optimizer.SubSet optimize() {
+        int n = selectivities.length;
+        int[] ranked = rank();
+
+        // best[i] is the cheapest plan for the ranked terms i..n-1
+        Optimizer.SubSet[] best = new Optimizer.SubSet[n + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            Optimizer.SubSet first = null;
+            for (int j = i + 1; j <= n; j++) {
+                first = extend(first, ranked[j - 1]);
+                if (j == n) {
+                    // all remaining terms in one group, branching or not, as initializeCosts decides it
+                    Optimizer.SubSet group = priced(first);
+                    if (best[i] == null || group.c < best[i].c) {
+                        best[i] = group;
+                    }
+                } else {
+                    double c = Optimizer.SubSet.combinedCost(first, best[j]);
+                    if (best[i] == null || c < best[i].c) {
+                        best[i] = join(first, best[j], c);
+                    }
+                }
+            }
+        }
+
+        // the whole query as one group on SIMD lanes, which initializeCosts only allows for all terms
+        if (n > 0 && costModel.vectorCost(n, best[0].e) < best[0].c) {
+            Optimizer.SubSet all = copy(best[0]);
+            all.c = costModel.vectorCost(n, best[0].e);
+            all.b = true;
+            all.simd = true;
+            return all;
+        }
+        return best[0];
+    }
+
+    /**
+     * @return The term indices ordered by increasing (p - 1) / fixedCost, ties kept in index order.
+     */
+    int[] rank() {
+        double[] metric = new double[selectivities.length];
+        for (int i = 0; i < selectivities.length; i++) {
+            Optimizer.SubSet term = extend(null, i);
+            metric[i] = (term.p - 1) / term.fixedCost();
+        }
+        return IntStream.range(0, selectivities.length)
+                .boxed()
+                .sorted((i, j) -> Double.compare(metric[i], metric[j]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * @return A new group with the terms of 'group', which may be null, and one more term.
+     */
+    private Optimizer.SubSet extend(Optimizer.SubSet group, int term) {
+        Optimizer.SubSet extended = new Optimizer.SubSet();
+        extended.mask = (group == null ? 0 : group.mask) | (1L << term);
+        extended.k = (group == null ? 0 : group.k) + 1;
+        extended.p = (group == null ? 1.0 : group.p) * selectivities[term];
+        if (extra != null) {
+            extended.e = (group == null ? 0.0 : group.e) + extra[term];
+        }
+        extended.costModel = costModel;
+        return extended;
+    }
+
+    /**
+     * @return A copy of a group with its cost set to the cheaper of the branching and no-branch forms.
+     */
+    private static Optimizer.SubSet priced(Optimizer.SubSet group) {
+        Optimizer.SubSet priced = copy(group);
+        double logicalAndCost = priced.logicalAndCost();
+        double noBranchCost = priced.noBranchCost();
+        if (noBranchCost < logicalAndCost) {
+            priced.c = noBranchCost;
+            priced.b = true;
+        } else {
+            priced.c = logicalAndCost;
+        }
+        return priced;
+    }
+
+    /**
+     * @return The plan "first &amp;&amp; rest".
+     */
+    private static Optimizer.SubSet join(Optimizer.SubSet first, Optimizer.SubSet rest, double c) {
+        Optimizer.SubSet joined = new Optimizer.SubSet();
+        joined.mask = first.mask | rest.mask;
+        joined.k = first.k + rest.k;
+        joined.p = first.p * rest.p;
+        joined.e = first.e + rest.e;
+        joined.costModel = first.costModel;
+        joined.c = c;
+        joined.L = copy(first);
+        joined.R = rest;
+        return joined;
+    }
+
+    private static Optimizer.SubSet copy(Optimizer.SubSet group) {
+        Optimizer.SubSet copy = new Optimizer.SubSet();
+        copy.mask = group.mask;
+        copy.k = group.k;
+        copy.p = group.p;
+        copy.e = group.e;
+        copy.costModel = group.costModel;
+        return copy;
+    }
+
+    /**
+     * Plans every query of a file both exactly and heuristically and prints how much more the heuristic plan costs.
+     * Queries with more than maxTerms terms are skipped.
+     *
+     * Usage: HeuristicOptimizer query-file config-file [maxTerms]
+     */
+    public static void main(String[] args) throws Exception {
+        String queryFile  = args[0];
+        String configFile = args[1];
+        int maxTerms      = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        Properties costs = new Properties();
+        costs.load(new FileInputStream(configFile));
+        CostModel costModel = Optimizer.parseCostModel(costs);
+
+        for (String line : Files.readAllLines(Paths.get(queryFile), Charset.defaultCharset())) {
+            double[] selectivities = Main.parseLine(line);
+            if (selectivities.length == 0 || selectivities.length > maxTerms) {
+                continue;
+            }
+            double exact = new Optimizer(selectivities, costModel, Optimizer.Enumeration.SUBMASKS).optimize().c;
+            double heuristic = new HeuristicOptimizer(selectivities, costModel).optimize().c;
+            System.out.println(String.format("%-50s exact %9.4f   heuristic %9.4f   %+7.2f%%",
+                    line.trim(), exact, heuristic, 100 * (heuristic - exact) / exact));
+        }
+    }
+}
@@ -1,9 +1,16 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.*;
@@ -11,36 +18,204 @@ import java.util.stream.Collectors;
 
 public class Main {
 
+    /**
+     * Queries with at least this many terms are optimized with {@link Optimizer.Enumeration#PARALLEL_WAVES}, spreading
+     * a single query across all cores. Smaller ones finish faster on one thread.
+     */
+    static final int PARALLEL_TERMS = 14;
+
+    /**
+     * Queries with at least this many terms are optimized by {@link FlatOptimizer}, whose subset table takes less than
+     * half the memory, in parallel waves as above. Only reached when "exact.terms" is raised above {@link #EXACT_TERMS}.
+     */
+    static final int FLAT_TERMS = 22;
+
+    /**
+     * Queries with more terms than this are planned by {@link HeuristicOptimizer} instead of algorithm 4.11, unless the
+     * configuration file sets "exact.terms".
+     */
+    static final int EXACT_TERMS = 20;
+
+    /**
+     * Number of plans kept by the plan cache, when one is used.
+     */
+    static final int CACHE_CAPACITY = 4096;
+
+    /**
+     * Number of terms, over all the plans it keeps, the plan cache is bounded to as well.
+     */
+    static final long CACHE_TERMS = 1 << 16;
+
+    /**
+     * How many queries per optimizer thread may be read ahead of the oldest plan not yet printed.
+     */
+    static final int IN_FLIGHT_PER_THREAD = 4;
+
     public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("calibrate")) {
+            Calibrator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            PlanServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("grid")) {
+            PlanGrid.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         String queryFile   = args[0];
         String configFile  = args[1];
+        int threads        = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        Path cacheFile     = args.length > 3 ? Paths.get(args[3]) : null;
 
         Properties costs = new Properties();
         costs.load(new FileInputStream(configFile));
+        CostModel costModel = Optimizer.parseCostModel(costs);
+        int exactTerms = Integer.parseInt(costs.getProperty("exact.terms", String.valueOf(EXACT_TERMS)));
 
-        List<List<Double>> selectivityList = parseFileToDoubleList(Files.readAllLines(Paths.get(queryFile), Charset.defaultCharset()));
+        // the plan cache is only used, and persisted between runs, when a cache file is given
+        PlanCache cache = cacheFile == null ? null : new PlanCache(CACHE_CAPACITY, CACHE_TERMS);
+        if (cache != null && Files.exists(cacheFile)) {
+            cache.load(cacheFile);
+        }
 
-        List<Callable<String>> tasks = selectivityList
-                .stream()
-                .map(selectivities -> new Optimizer(selectivities, costs))
-                .collect(Collectors.toList());
-
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        List<Future<String>> results = executor.invokeAll(tasks);
-        results.stream().forEach(f -> {
+        // queries are read one line at a time and at most a window of them is in flight, so memory does not grow
+        // with the size of the query file
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<Plan>> window = new ArrayDeque<>();
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()));
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(queryFile), Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                double[] selectivities = parseLine(line);
+                if (selectivities.length == 0) {
+                    continue;
+                }
+                double[] termCosts = parseCosts(line, costModel);
+                window.add(executor.submit(task(selectivities, termCosts, costModel, exactTerms, cache)));
+                if (window.size() >= IN_FLIGHT_PER_THREAD * threads) {
+                    print(window.remove(), out);
+                }
+            }
+        } finally {
+            // also when a line cannot be parsed or planned: the plans read before it come out, and the pool's
+            // threads do not keep the JVM alive
             try {
-                f.get();
-            } catch (InterruptedException | ExecutionException e) {
-                e.getCause().printStackTrace();
+                while (!window.isEmpty()) {
+                    print(window.remove(), out);
+                }
+                out.flush();
+            } finally {
+                executor.shutdownNow();
             }
-        });
-        executor.shutdown();
+        }
+
+        if (cache != null) {
+            cache.save(cacheFile);
+            System.err.println(cache);
+        }
+    }
+
+    private static Callable<Plan> task(double[] selectivities, double[] costs, CostModel costModel, int exactTerms,
+                                       PlanCache cache) {
+        if (MultisetOptimizer.ENABLED && selectivities.length <= HeuristicOptimizer.MAX_TERMS
+                && MultisetOptimizer.states(selectivities, costs) < 1L << Math.min(selectivities.length, exactTerms)) {
+            // repeated terms: fewer states than the subsets of an exact search, so an exact plan even past exactTerms
+            return new MultisetOptimizer(selectivities, costs, costModel);
+        }
+        if (selectivities.length > exactTerms) {
+            return new HeuristicOptimizer(selectivities, costs, costModel);
+        }
+        if (selectivities.length >= FLAT_TERMS) {
+            return new FlatOptimizer(selectivities, costs, costModel, enumeration(selectivities.length));
+        }
+        Optimizer.Enumeration enumeration = enumeration(selectivities.length);
+        return cache == null
+                ? new Optimizer(selectivities, costs, costModel, enumeration)
+                : () -> cache.optimize(selectivities, costs, costModel, enumeration);
+    }
+
+    /**
+     * Finds the plan for a query with the same optimizer {@link #task} would use, without a cache.
+     *
+     * @return The plan, unrendered.
+     */
+    static Plan plan(double[] selectivities, double[] costs, CostModel costModel, int exactTerms) throws Exception {
+        return task(selectivities, costs, costModel, exactTerms, null).call();
+    }
+
+    private static Optimizer.Enumeration enumeration(int terms) {
+        return terms >= PARALLEL_TERMS ? Optimizer.Enumeration.PARALLEL_WAVES : Optimizer.Enumeration.SUBMASKS;
+    }
+
+    /**
+     * Waits for the oldest plan in flight and writes it. Plans are written in the order the queries were read.
+     */
+    private static void print(Future<Plan> result, Writer out) throws IOException, InterruptedException {
+        try {
+            out.write(result.get().toString());
+            out.write(System.lineSeparator());
+        } catch (ExecutionException e) {
+            // the plans before it must come out first
+            out.flush();
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Parses a line of the query file without boxing.
+     *
+     * @param line Selectivities separated by white space, each optionally followed by ":cost".
+     * @return The selectivities on the line; empty for a blank line.
+     */
+    public static double[] parseLine(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty()) {
+            return new double[0];
+        }
+        String[] values = trimmed.split("\\s+");
+        double[] selectivities = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            int colon = values[i].indexOf(':');
+            selectivities[i] = Double.parseDouble(colon < 0 ? values[i] : values[i].substring(0, colon));
+        }
+        return selectivities;
+    }
+
+    /**
+     * Parses the term costs of a line of the query file. A term written as "0.4:12" has a function that costs 12 in
+     * place of the f of the cost model, and one written as "0.4:12:3" also reads its column at a cost of 3 in place of
+     * r. Both costs are paid once per term in every formula, so an access cost is folded into the function cost. A term
+     * without costs costs f.
+     *
+     * @param line Selectivities separated by white space, each optionally followed by ":f" or ":f:r".
+     * @param costModel Provides f and r for the terms without costs of their own.
+     * @return The cost of each term in units of f, or null if no term on the line has one.
+     */
+    public static double[] parseCosts(String line, CostModel costModel) {
+        if (line.indexOf(':') < 0) {
+            return null;
+        }
+        String[] values = line.trim().split("\\s+");
+        double[] costs = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            String[] parts = values[i].split(":");
+            if (parts.length > 3) {
+                throw new IllegalArgumentException("Expected selectivity[:f[:r]], got " + values[i]);
+            }
+            costs[i] = parts.length > 1 ? Double.parseDouble(parts[1]) : costModel.f;
+            if (parts.length > 2) {
+                costs[i] += Double.parseDouble(parts[2]) - costModel.r;
+            }
+        }
+        return costs;
     }
 
     public static List<Double> parseLineToDoubleList(String line) {
-        return Arrays.asList(line.split("\\s+"))
-                .stream()
-                .map(Double::parseDouble)
+        return Arrays.stream(parseLine(line))
+                .boxed()
                 .collect(Collectors.toList());
     }
 
@@ -0,0 +1,347 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+/**
+ * Algorithm 4.11 over multisets of interchangeable terms, for queries that repeat selectivities.
+ *
+ * Every formula of the cost model only sees how many terms a subset has, the product of their selectivities and how
+ * much more than f their functions cost. Terms with the same selectivity, and the same cost when terms have costs, are
+ * therefore interchangeable: they are collapsed into classes, and a subset is identified by how many terms of each
+ * class it holds. A query whose classes have n1, ..., nm terms has (n1 + 1) ... (nm + 1) states instead of 2^n
+ * subsets. Four terms of 0.5 are 5 states and 6 pairs of disjoint non-empty states, instead of 16 subsets and 50
+ * pairs.
+ *
+ * The dynamic program is {@link FlatOptimizer}'s over state indices, which are the counts in mixed radix, so adding
+ * the indices of two disjoint states gives their union. Concrete terms are only chosen when the plan is rebuilt: every
+ * &amp;-term takes the lowest unused terms of its classes, in the order the plan evaluates them.
+ *
+ * Costs are those of the full search, up to the last bits of the products of selectivities, which the full search
+ * multiplies in a different order for subsets with the same counts. Plans that tie may be picked differently.
+ *
+ * The mode is off unless the system property {@value #PROPERTY} is "on"; {@link Main} then uses it for every query
+ * with fewer states than the subsets it would otherwise search.
+ */
+public class MultisetOptimizer implements Callable<Plan> {
+
+    static final String PROPERTY = "optimizer.multiset";
+
+    static final boolean ENABLED = "on".equals(System.getProperty(PROPERTY));
+
+    /**
+     * Largest number of states the flat state table may hold.
+     */
+    static final int MAX_STATES = 1 << 26;
+
+    private final double[] selectivities;
+    private final double[] extra;       // How much more than f the function of each term costs, or null.
+    private final CostModel costModel;
+
+    private final int[][] members;      // The terms of each class, in increasing order.
+    private final int[] weight;         // The state index of one term of each class.
+
+    private final int[] k;
+    private final double[] p;
+    private final double[] e;
+    private final double[] c;
+    private final int[] left;
+    private final int[] leftMost;
+    private final boolean simd;
+    private long pairs;
+
+    public MultisetOptimizer(double[] selectivities, CostModel costModel) {
+        this(selectivities, null, costModel);
+    }
+
+    /**
+     * @param selectivities The selectivity of each term.
+     * @param costs The cost of the function of each term, or null if every term costs f.
+     * @param costModel The cost model to optimize with.
+     */
+    public MultisetOptimizer(double[] selectivities, double[] costs, CostModel costModel) {
+        int n = selectivities.length;
+        if (n > HeuristicOptimizer.MAX_TERMS) {
+            throw new IllegalArgumentException("Cannot optimize more than " + HeuristicOptimizer.MAX_TERMS
+                    + " terms, got " + n);
+        }
+        long states = states(selectivities, costs);
+        if (states > MAX_STATES) {
+            throw new IllegalArgumentException("Cannot optimize more than " + MAX_STATES + " states, got " + states);
+        }
+        this.selectivities = selectivities;
+        this.extra = costModel.extraCosts(costs);
+        this.costModel = costModel;
+
+        this.members = classes(selectivities, costs);
+        this.weight = new int[members.length];
+        int size = 1;
+        for (int j = 0; j < members.length; j++) {
+            weight[j] = size;
+            size *= members[j].length + 1;
+        }
+
+        k = new int[size];
+        p = new double[size];
+        e = extra == null ? null : new double[size];
+        c = new double[size];
+        left = new int[size];
+        leftMost = new int[size];
+
+        for (int state = 1; state < size; state++) {
+            long mask = representative(state);
+            k[state] = Long.bitCount(mask);
+            p[state] = product(mask);
+            if (e != null) {
+                e[state] = extra(mask);
+            }
+            c[state] = Math.min(costModel.noBranchCost(k[state], e(state)),
+                    costModel.logicalAndCost(k[state], e(state), p[state]));
+        }
+
+        // as in Optimizer.initializeCosts, only the whole query can be one vectorized no-branch term
+        int full = size - 1;
+        simd = n > 0 && costModel.vectorCost(n, e(full)) < c[full];
+        if (simd) {
+            c[full] = costModel.vectorCost(n, e(full));
+        }
+    }
+
+    public MultisetOptimizer(List<Double> selectivities, CostModel costModel) {
+        this(Optimizer.toArray(selectivities), costModel);
+    }
+
+    /**
+     * @return The terms of each class of interchangeable terms, classes in the order of their first term.
+     */
+    static int[][] classes(double[] selectivities, double[] costs) {
+        List<List<Integer>> classes = new ArrayList<>();
+        List<Integer> firsts = new ArrayList<>();
+        for (int term = 0; term < selectivities.length; term++) {
+            int j = 0;
+            while (j < firsts.size() && !interchangeable(selectivities, costs, firsts.get(j), term)) {
+                j++;
+            }
+            if (j == firsts.size()) {
+                classes.add(new ArrayList<>());
+                firsts.add(term);
+            }
+            classes.get(j).add(term);
+        }
+
+        int[][] members = new int[classes.size()][];
+        for (int j = 0; j < members.length; j++) {
+            members[j] = classes.get(j).stream().mapToInt(Integer::intValue).toArray();
+        }
+        return members;
+    }
+
+    private static boolean interchangeable(double[] selectivities, double[] costs, int one, int two) {
+        return Double.compare(selectivities[one], selectivities[two]) == 0
+                && (costs == null || Double.compare(costs[one], costs[two]) == 0);
+    }
+
+    /**
+     * @return The number of states of a query, 2^n when no two terms are interchangeable, or Long.MAX_VALUE if there
+     * are more than {@link #MAX_STATES}.
+     */
+    static long states(double[] selectivities, double[] costs) {
+        long states = 1;
+        for (int[] terms : classes(selectivities, costs)) {
+            states *= terms.length + 1;
+            if (states > MAX_STATES) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return states;
+    }
+
+    private int count(int state, int j) {
+        return state / weight[j] % (members[j].length + 1);
+    }
+
+    /**
+     * @return The mask of the lowest terms of each class that a state holds.
+     */
+    private long representative(int state) {
+        long mask = 0;
+        for (int j = 0; j < members.length; j++) {
+            for (int i = count(state, j) - 1; i >= 0; i--) {
+                mask |= 1L << members[j][i];
+            }
+        }
+        return mask;
+    }
+
+    private double product(long mask) {
+        double product = 1.0;
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            // in index order, as generateSubSets multiplies them
+            product *= selectivities[Long.numberOfTrailingZeros(bits)];
+        }
+        return product;
+    }
+
+    private double extra(long mask) {
+        double sum = 0.0;
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            sum += extra[Long.numberOfTrailingZeros(bits)];
+        }
+        return sum;
+    }
+
+    private double e(int state) {
+        return e == null ? 0.0 : e[state];
+    }
+
+    /**
+     * @return The number of (S', S) pairs visited by the last optimization, lemmas not considered.
+     */
+    long pairCount() {
+        return pairs;
+    }
+
+    /**
+     * @return The number of classes of interchangeable terms.
+     */
+    int classCount() {
+        return members.length;
+    }
+
+    @Override
+    public Plan call() throws Exception {
+        return new Plan(optimize(), selectivities, null);
+    }
+
+    /**
+     * Runs algorithm 4.11 over the states without rendering the result.
+     *
+     * @return The optimal plan for all terms.
+     */
+    Optimizer.SubSet optimize() {
+        int full = c.length - 1;
+        pairs = 0;
+
+        // states by increasing number of terms, so every state is final before it is combined
+        int[] first = new int[selectivities.length + 2];
+        for (int state = 1; state <= full; state++) {
+            first[k[state] + 1]++;
+        }
+        for (int i = 1; i < first.length; i++) {
+            first[i] += first[i - 1];
+        }
+        int[] order = new int[full];
+        for (int state = 1; state <= full; state++) {
+            order[first[k[state]]++] = state;
+        }
+
+        int[] room = new int[members.length];
+        int[] digits = new int[members.length];
+        for (int s : order) {
+            visit(s, room, digits);
+        }
+        return plan(full, new int[members.length], true);
+    }
+
+    /**
+     * Visits S once its plan is final: records its first &amp;-term and combines it with every disjoint S', by
+     * counting through the terms left over in each class.
+     */
+    private void visit(int s, int[] room, int[] digits) {
+        leftMost[s] = left[s] == 0 ? s : leftMost[left[s]];
+
+        double p2 = p[leftMost[s]];
+        double fixedCost2 = costModel.fixedCost(k[leftMost[s]], e(leftMost[s]));
+        double cost = c[s];
+
+        for (int j = 0; j < members.length; j++) {
+            room[j] = members[j].length - count(s, j);
+            digits[j] = 0;
+        }
+        int sPrime = 0;
+        while (true) {
+            int j = 0;
+            while (j < digits.length && digits[j] == room[j]) {
+                sPrime -= digits[j] * weight[j];
+                digits[j] = 0;
+                j++;
+            }
+            if (j == digits.length) {
+                break;
+            }
+            digits[j]++;
+            sPrime += weight[j];
+            pairs++;
+
+            double p1 = p[sPrime];
+            int k1 = k[sPrime];
+            double fixedCost1 = costModel.fixedCost(k1, e(sPrime));
+
+            // lemma 4.8, then lemma 4.9 when S' is selective, exactly as SubSet.lemma48 and SubSet.lemma49
+            boolean lemma48 = p2 <= p1 && ((p2 - 1) / fixedCost2) < ((p1 - 1) / fixedCost1);
+            if (lemma48 || (p1 <= 0.5 && p2 <= p1 && fixedCost2 < fixedCost1)) {
+                continue;
+            }
+
+            double combined = costModel.combinedCost(k1, e(sPrime), p1, cost);
+            int union = s + sPrime;
+            if (combined < c[union]) {
+                c[union] = combined;
+                left[union] = sPrime;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the best plan of a state into SubSet objects, giving each &amp;-term the next unused terms of its
+     * classes in the order the plan evaluates them.
+     *
+     * @param next How many terms of each class are already taken.
+     */
+    private Optimizer.SubSet plan(int state, int[] next, boolean root) {
+        Optimizer.SubSet plan = new Optimizer.SubSet();
+        if (left[state] != 0) {
+            plan.L = plan(left[state], next, false);
+            plan.R = plan(state - left[state], next, false);
+            plan.mask = plan.L.mask | plan.R.mask;
+        } else {
+            for (int j = 0; j < members.length; j++) {
+                for (int i = count(state, j); i > 0; i--) {
+                    plan.mask |= 1L << members[j][next[j]++];
+                }
+            }
+        }
+        plan.k = k[state];
+        plan.p = product(plan.mask);
+        plan.e = extra == null ? 0.0 : extra(plan.mask);
+        plan.c = c[state];
+        plan.costModel = costModel;
+        plan.b = plan.noBranchCost() < plan.logicalAndCost();
+        if (simd && root && left[state] == 0) {
+            plan.b = true;
+            plan.simd = true;
+        }
+        return plan;
+    }
+
+    /**
+     * Optimizes a single query given on the command line and prints its plan.
+     *
+     * Usage: MultisetOptimizer config-file selectivity...
+     */
+    public static void main(String[] args) throws IOException {
+        Properties costs = new Properties();
+        costs.load(new FileInputStream(args[0]));
+
+        double[] selectivities = new double[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            selectivities[i - 1] = Double.parseDouble(args[i]);
+        }
+        MultisetOptimizer optimizer = new MultisetOptimizer(selectivities, Optimizer.parseCostModel(costs));
+        System.out.println(optimizer.optimize().optimalAsString(selectivities, null));
+        System.out.println(optimizer.classCount() + " classes, " + optimizer.c.length + " states, "
+                + optimizer.pairCount() + " pairs");
+    }
+}
@@ -1,58 +1,48 @@
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
-public class Optimizer implements Callable<String> {
+public class Optimizer implements Callable<Plan> {
 
-    private static class SubSet {
+    static class SubSet implements Serializable {
 
-        Selectivities selectivities; // Container for the selectivities of this subset
+        private static final long serialVersionUID = 1L;
+
+        long mask;                   // Bit i is on when term i belongs to this subset.
         int k;                       // Number of terms corresponding to each subset.
         double p;                    // Product of the values of all terms in the subset.
+        double e;                    // How much more than k * f the functions of its terms cost; 0 without term costs.
         boolean b;                   // Whether the no-branch optimization was used to get the best cost.
+        boolean simd;                // Whether that no-branch term is evaluated on SIMD lanes; only for a whole plan.
         double c;                    // Current best cost for the subset.
         SubSet L;                    // Left child of the sub plan.
         SubSet R;                    // Right child of the sub plan.
-
-        public static class CostModel {
-            double r; // the cost of accessing an array element rj[i] in order to perform operations on it
-            double t; // the cost of performing an if test
-            double l; // the cost of performing a logical “and”
-            double m; // the cost of a branch misprediction
-            double a; // the cost of writing an answer to the answer array and incrementing the answer array counter
-            double f; // the cost of applying function f to its argument
-
-            public CostModel(double a, double f, double l, double m, double r, double t) {
-                this.a = a;
-                this.f = f;
-                this.l = l;
-                this.m = m;
-                this.r = r;
-                this.t = t;
-            }
-        }
-
-        public static CostModel costModel;
+        CostModel costModel;         // Cost model of the optimization this subset belongs to.
 
         public double noBranchCost() {
-            return k * costModel.r + (k - 1) * costModel.l + costModel.f * k + costModel.a;
+            return costModel.noBranchCost(k, e);
         }
 
         public double logicalAndCost() {
-            double q = p <= 0.5 ? p : 1.0 - p;
-            return k * costModel.r + (k - 1) * costModel.l + k * costModel.f + costModel.t + costModel.m * q + p * costModel.a;
+            return costModel.logicalAndCost(k, e, p);
         }
 
         public double fixedCost() {
-            return k * costModel.r + (k - 1) * costModel.l + k * costModel.f + costModel.t;
+            return costModel.fixedCost(k, e);
+        }
+
+        public double vectorCost() {
+            return costModel.vectorCost(k, e);
         }
 
         public static double combinedCost(SubSet one, SubSet two) {
-            double q = Math.min(one.p, 1.0 - one.p);
-            return one.fixedCost() + costModel.m * q + one.p * two.c;
+            return one.costModel.combinedCost(one.k, one.e, one.p, two.c);
         }
 
         public SubSet leftMost() {
@@ -85,16 +75,25 @@ public class Optimizer implements Callable<String> {
 
         @Override
         public String toString() {
+            return toString(null);
+        }
+
+        /**
+         * Renders this sub plan with its terms renamed.
+         *
+         * @param terms Maps each term index of this plan to the index to print, or null to print them unchanged.
+         * @return The condition this sub plan evaluates.
+         */
+        public String toString(int[] terms) {
             StringBuilder sb = new StringBuilder();
 
             if (atEnd()) {
                 if (k > 1) {
                     sb.append("(");
                 }
-                for (int i = 0; i < selectivities.bitSet.size(); i++) {
-                    if (selectivities.bitSet.get(i)) {
-                        sb.append("t").append(i + 1).append("[o").append(i + 1).append("[i]]").append(" & ");
-                    }
+                for (long bits = termMask(terms); bits != 0; bits &= bits - 1) {
+                    int i = Long.numberOfTrailingZeros(bits);
+                    sb.append("t").append(i + 1).append("[o").append(i + 1).append("[i]]").append(" & ");
                 }
                 sb.setLength(sb.length() - 3);
                 if (k > 1) {
@@ -102,41 +101,81 @@ public class Optimizer implements Callable<String> {
                 }
             } else {
                 if (R.R == null && R.b) {
-                    sb.append("(").append(L).append(")");
+                    sb.append("(").append(L.toString(terms)).append(")");
                 } else {
-                    sb.append("(").append(L).append(" && ").append(R).append(")");
+                    sb.append("(").append(L.toString(terms)).append(" && ").append(R.toString(terms)).append(")");
                 }
             }
             return sb.toString();
         }
 
+        /**
+         * @param terms Maps each term index of this subset to another index, or null for the identity.
+         * @return The mask of this subset with its terms renamed.
+         */
+        private long termMask(int[] terms) {
+            if (terms == null) {
+                return mask;
+            }
+            long renamed = 0;
+            for (long bits = mask; bits != 0; bits &= bits - 1) {
+                renamed |= 1L << terms[Long.numberOfTrailingZeros(bits)];
+            }
+            return renamed;
+        }
+
         public String optimalAsString(List<Double> selectivities) {
+            return optimalAsString(toArray(selectivities), null);
+        }
+
+        /**
+         * Renders the complete plan, header and footer included.
+         *
+         * @param selectivities The selectivities to print in the header.
+         * @param terms Maps each term index of this plan to the index to print, or null to print them unchanged.
+         * @return C code for this plan.
+         */
+        public String optimalAsString(double[] selectivities, int[] terms) {
             StringBuilder sb = new StringBuilder();
             sb.append(header(selectivities));
+            sb.append(code(terms));
+            sb.append(footer());
+            return sb.toString();
+        }
+
+        /**
+         * Renders the body of the scan loop for this plan, without header and footer.
+         *
+         * @param terms Maps each term index of this plan to the index to print, or null to print them unchanged.
+         * @return C code for this plan.
+         */
+        public String code(int[] terms) {
+            StringBuilder sb = new StringBuilder();
 
             if (atEnd()) {
               if (!this.b) {
-                sb.append("if ").append(this).append(" {\n");
+                sb.append("if ").append(this.toString(terms)).append(" {\n");
                 sb.append("\tanswer[j++] = i;\n}\n");
               }
               else {
+                if (this.simd) {
+                  sb.append("// evaluated on SIMD lanes, many rows at a time\n");
+                }
                 sb.append("answer[j] = i;\n");
-                sb.append("j += ").append(this).append(";\n");
+                sb.append("j += ").append(this.toString(terms)).append(";\n");
               }
             } else {
-              sb.append("if ").append(this).append(" {\n");
+              sb.append("if ").append(this.toString(terms)).append(" {\n");
               SubSet rightmost = this.rightMost();
               if (rightmost.b) {
                 sb.append("\tanswer[j] = i;\n");
-                sb.append("\tj += ").append(rightmost.toString()).append(";\n");
+                sb.append("\tj += ").append(rightmost.toString(terms)).append(";\n");
               }
               else {
                 sb.append("\tanswer[j++] = i;\n");
               }
               sb.append("}\n");
             }
-
-            sb.append(footer());
             return sb.toString();
         }
 
@@ -144,10 +183,39 @@ public class Optimizer implements Callable<String> {
             return this.L == null && this.R == null;
         }
 
-        private StringBuilder header(List<Double> selectivities) {
+        /**
+         * Prices this plan at other selectivities without changing it: every group keeps its terms, and branches or
+         * not, as the optimizer chose.
+         *
+         * @param selectivities The selectivity of each term.
+         * @param terms Maps each term index of this plan to an index of selectivities, or null for the identity.
+         * @return The cost of this plan per row at those selectivities.
+         */
+        double costAt(double[] selectivities, int[] terms) {
+            if (atEnd()) {
+                if (simd) {
+                    return costModel.vectorCost(k, e);
+                }
+                return b ? costModel.noBranchCost(k, e) : costModel.logicalAndCost(k, e, productAt(selectivities, terms));
+            }
+            return costModel.combinedCost(L.k, L.e, L.productAt(selectivities, terms), R.costAt(selectivities, terms));
+        }
+
+        private double productAt(double[] selectivities, int[] terms) {
+            double product = 1.0;
+            for (long bits = mask; bits != 0; bits &= bits - 1) {
+                int term = Long.numberOfTrailingZeros(bits);
+                product *= selectivities[terms == null ? term : terms[term]];
+            }
+            return product;
+        }
+
+        private StringBuilder header(double[] selectivities) {
             StringBuilder sb = new StringBuilder();
             sb.append("==================================================================\n");
-            sb.append(selectivities.stream().map(Object::toString).collect(Collectors.joining(" ")));
+            for (int i = 0; i < selectivities.length; i++) {
+                sb.append(i > 0 ? " " : "").append(selectivities[i]);
+            }
             sb.append("\n");
             sb.append("------------------------------------------------------------------\n");
             return sb;
@@ -162,112 +230,478 @@ public class Optimizer implements Callable<String> {
         }
     }
 
-    private final List<Double> selectivities;
-    private List<SubSet> subSets;
+    /**
+     * Largest number of terms the mask-indexed subset table can hold: the table is an array indexed by int masks.
+     */
+    static final int MAX_TERMS = 30;
+
+    /**
+     * How call() enumerates the (S', S) pairs of algorithm 4.11.
+     */
+    public enum Enumeration {
+        /** Visits every ordered pair of subsets and skips the ones that intersect: 4^n pairs. */
+        ALL_PAIRS,
+        /** Visits only the submasks of each subset's complement, which are exactly the disjoint pairs: 3^n pairs. */
+        SUBMASKS,
+        /**
+         * Visits the same 3^n pairs grouped by their union, one cardinality wave at a time, with each wave split across
+         * a ForkJoinPool. Every union is reduced by a single task, so the plan does not depend on the thread count.
+         */
+        PARALLEL_WAVES
+    }
+
+    /**
+     * Roughly how many pairs a single ForkJoin task of a parallel wave should visit before it stops splitting.
+     */
+    private static final long LEAF_PAIRS = 1 << 14;
+
+    private double[] selectivities;          // Replaced, never changed, by reoptimize().
+    private final SubSet[] subSets;          // Indexed by subset mask; slot 0 (the empty set) is never used.
+    private final int[] order;               // Non-empty subset masks in the order algorithm 4.11 visits them.
+    private final Enumeration enumeration;
+    private final ForkJoinPool pool;         // Runs the waves of Enumeration.PARALLEL_WAVES.
+    private long pairCount;                  // Number of (S', S) pairs visited by the last call().
+    private boolean optimized;               // Whether every subset holds its best plan.
+    private final OptimizerMetrics.Run run = new OptimizerMetrics.Run(); // Only kept when metrics are enabled.
 
     public Optimizer(List<Double> selectivities, Properties props) {
+        this(selectivities, parseCostModel(props));
+    }
+
+    public Optimizer(List<Double> selectivities, Properties props, Enumeration enumeration) {
+        this(selectivities, parseCostModel(props), enumeration);
+    }
+
+    public Optimizer(List<Double> selectivities, Properties props, Enumeration enumeration, ForkJoinPool pool) {
+        this(selectivities, parseCostModel(props), enumeration, pool);
+    }
+
+    public Optimizer(List<Double> selectivities, CostModel costModel) {
+        this(selectivities, costModel, Enumeration.SUBMASKS);
+    }
+
+    public Optimizer(List<Double> selectivities, CostModel costModel, Enumeration enumeration) {
+        this(selectivities, costModel, enumeration, ForkJoinPool.commonPool());
+    }
+
+    public Optimizer(List<Double> selectivities, CostModel costModel, Enumeration enumeration, ForkJoinPool pool) {
+        this(toArray(selectivities), costModel, enumeration, pool);
+    }
+
+    public Optimizer(double[] selectivities, CostModel costModel, Enumeration enumeration) {
+        this(selectivities, costModel, enumeration, ForkJoinPool.commonPool());
+    }
+
+    public Optimizer(double[] selectivities, CostModel costModel, Enumeration enumeration, ForkJoinPool pool) {
+        this(selectivities, null, costModel, enumeration, pool);
+    }
+
+    public Optimizer(double[] selectivities, double[] costs, CostModel costModel, Enumeration enumeration) {
+        this(selectivities, costs, costModel, enumeration, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param selectivities The selectivity of each term.
+     * @param costs The cost of applying the function of each term, in place of f, or null if every term costs f.
+     * @param costModel The cost model to optimize with.
+     * @param enumeration How to enumerate the (S', S) pairs.
+     * @param pool Runs the waves of {@link Enumeration#PARALLEL_WAVES}.
+     */
+    public Optimizer(double[] selectivities, double[] costs, CostModel costModel, Enumeration enumeration,
+                     ForkJoinPool pool) {
+        long start = OptimizerMetrics.ENABLED ? System.nanoTime() : 0;
         this.selectivities = selectivities;
-        this.subSets = generateSubSets(selectivities);
-        SubSet.costModel = parseCostModel(props);
+        this.subSets = generateSubSets(selectivities, costs, costModel);
+        this.order = visitOrder(selectivities.length);
+        this.enumeration = enumeration;
+        this.pool = pool;
+
+        long generated = OptimizerMetrics.ENABLED ? System.nanoTime() : 0;
         initializeCosts(subSets);
+        if (OptimizerMetrics.ENABLED) {
+            run.generateNanos = generated - start;
+            run.initializeNanos = System.nanoTime() - generated;
+        }
     }
 
-    private SubSet.CostModel parseCostModel(Properties props) {
+    /**
+     * Reads the constants of the cost model from a configuration such as config.txt.
+     *
+     * @param props Properties with the keys r, t, l, m, a and f, and optionally v when SIMD execution is available.
+     * @return The cost model described by the properties.
+     */
+    static CostModel parseCostModel(Properties props) {
         double r = Double.valueOf(props.getProperty("r"));
         double t = Double.valueOf(props.getProperty("t"));
         double l = Double.valueOf(props.getProperty("l"));
         double m = Double.valueOf(props.getProperty("m"));
         double a = Double.valueOf(props.getProperty("a"));
         double f = Double.valueOf(props.getProperty("f"));
-        return new SubSet.CostModel(a, f, l, m, r, t);
+        double v = Double.valueOf(props.getProperty("v", "Infinity"));
+        return new CostModel(a, f, l, m, r, t, v);
     }
 
     /**
-     * Implements algorithm 4.11.
+     * Implements algorithm 4.11. Optimizers share no state, so any number of them can run concurrently.
      * @return C code that computes the optimal cost of a query given a selectivity.
      * @throws Exception if things things go bananas.
      */
     @Override
-    public String call() throws Exception {
-        for (SubSet s : subSets) {
-            for (SubSet sPrime : subSets) {
-                if (!bitIntersect(s.selectivities.bitSet, sPrime.selectivities.bitSet)) {
-                    if (!(s.lemma48(sPrime) || (sPrime.p <= 0.5 && s.lemma49(sPrime)))) {
-                        double c = SubSet.combinedCost(sPrime, s);
-                        List<Boolean> union = bitUnion(sPrime.selectivities.bitSet, s.selectivities.bitSet);
-                        SubSet subset = findSubSetByBitSet(subSets, union);
-                        if (c < subset.c) {
-                            subset.c = c;
-                            subset.L = sPrime;
-                            subset.R = s;
+    public Plan call() throws Exception {
+        SubSet plan = optimize();
+        return new Plan(plan, selectivities, null, OptimizerMetrics.DUMP ? run.toString() : "");
+    }
+
+    /**
+     * Runs algorithm 4.11 without rendering the result.
+     *
+     * @return The optimal plan for all terms.
+     */
+    SubSet optimize() {
+        long start = OptimizerMetrics.ENABLED ? System.nanoTime() : 0;
+        int full = subSets.length - 1;
+        pairCount = 0;
+        if (OptimizerMetrics.ENABLED) {
+            run.lemma48Prunes = 0;
+            run.lemma49Prunes = 0;
+            run.improvements = 0;
+            if (optimized) {
+                // the subset table was built once, and its time already added with the first optimization
+                run.generateNanos = 0;
+                run.initializeNanos = 0;
+            }
+        }
+
+        if (enumeration == Enumeration.PARALLEL_WAVES) {
+            // order is sorted by cardinality, so each wave is a contiguous run of it
+            int from = 0;
+            while (from < order.length) {
+                int k = Integer.bitCount(order[from]);
+                int to = from;
+                while (to < order.length && Integer.bitCount(order[to]) == k) {
+                    to++;
+                }
+                if (k > 1) {
+                    pairCount += pool.invoke(new Wave(order, from, to, k));
+                }
+                from = to;
+            }
+        } else {
+            // S is always visited after every subset that can be combined into it, so its c and plan are final here.
+            // Each (S', S) pair for a fixed S has a different union, so the order of S' does not affect the result.
+            for (int sMask : order) {
+                SubSet s = subSets[sMask];
+                if (enumeration == Enumeration.SUBMASKS) {
+                    int complement = full & ~sMask;
+                    for (int sPrimeMask = complement; sPrimeMask != 0; sPrimeMask = (sPrimeMask - 1) & complement) {
+                        pairCount++;
+                        combine(subSets[sPrimeMask], s);
+                    }
+                } else {
+                    for (int sPrimeMask : order) {
+                        pairCount++;
+                        if ((sMask & sPrimeMask) == 0) {
+                            combine(subSets[sPrimeMask], s);
                         }
                     }
                 }
             }
         }
 
-        SubSet optimal = subSets.get(subSets.size() - 1);
-        String s = optimal.optimalAsString(selectivities);
-        System.out.println(s);
-        return s;
+        if (OptimizerMetrics.ENABLED) {
+            run.pairs = pairCount;
+            run.optimizeNanos = System.nanoTime() - start;
+            OptimizerMetrics.INSTANCE.add(run);
+        }
+        optimized = true;
+        return subSets[full];
     }
 
     /**
-     * Iterates over the global list of subsets and finds the one that matches the given bit set.
+     * Changes the selectivity of one term and finds the new optimal plan, reusing the work of the last optimization.
+     *
+     * A subset without the term keeps its product, its cost and its best split, since none of the plans it was
+     * chosen from involve the term. Only the subsets that contain it are priced again and then reduced, smallest
+     * first, the way {@link Enumeration#PARALLEL_WAVES} reduces them, so the plan is the one a new optimizer would
+     * find for the new selectivities. Those subsets are replaced by new nodes, so plans returned before do not change.
      *
-     * @param allSubSets The global list of subsets.
-     * @param bitSet The bit set to look for.
-     * @return A subset that contains the specified bit set.
+     * @param term The index of the term whose selectivity changed.
+     * @param selectivity The new selectivity of the term.
+     * @return The optimal plan for the new selectivities.
+     * @throws IllegalStateException if this optimizer has not optimized yet.
      */
-    private static SubSet findSubSetByBitSet(List<SubSet> allSubSets, List<Boolean> bitSet) {
-        return allSubSets
-                .stream()
-                .filter(ss -> ss.selectivities.bitSet.equals(bitSet))
-                .findFirst().get();
+    public Plan reoptimize(int term, double selectivity) {
+        if (!optimized) {
+            throw new IllegalStateException("Nothing to reoptimize before the first optimization");
+        }
+        if (term < 0 || term >= selectivities.length) {
+            throw new IllegalArgumentException("No term " + term + " in a query of " + selectivities.length + " terms");
+        }
+        long start = OptimizerMetrics.ENABLED ? System.nanoTime() : 0;
+        int full = subSets.length - 1;
+        int bit = 1 << term;
+
+        selectivities = selectivities.clone();
+        selectivities[term] = selectivity;
+
+        // supersets of the term in increasing order, so the product without the highest term is already updated.
+        // Each gets a new node: the old ones may be part of a Plan returned earlier, which must not change.
+        for (int mask = bit; mask <= full; mask = (mask + 1) | bit) {
+            int highest = 31 - Integer.numberOfLeadingZeros(mask);
+            int rest = mask ^ (1 << highest);
+            SubSet old = subSets[mask];
+            SubSet subSet = new SubSet();
+            subSet.mask = old.mask;
+            subSet.k = old.k;
+            subSet.e = old.e;
+            subSet.costModel = old.costModel;
+            subSet.p = (rest == 0 ? 1.0 : subSets[rest].p) * selectivities[highest];
+            subSets[mask] = subSet;
+            initializeCost(subSet);
+        }
+        initializeVectorCost(subSets);
+
+        int[] targets = Arrays.stream(order).filter(mask -> (mask & bit) != 0 && Integer.bitCount(mask) > 1).toArray();
+        pairCount = 0;
+        if (OptimizerMetrics.ENABLED) {
+            run.lemma48Prunes = 0;
+            run.lemma49Prunes = 0;
+            run.improvements = 0;
+        }
+        int from = 0;
+        while (from < targets.length) {
+            int k = Integer.bitCount(targets[from]);
+            int to = from;
+            while (to < targets.length && Integer.bitCount(targets[to]) == k) {
+                to++;
+            }
+            if (enumeration == Enumeration.PARALLEL_WAVES) {
+                pairCount += pool.invoke(new Wave(targets, from, to, k));
+            } else {
+                for (int i = from; i < to; i++) {
+                    pairCount += reduce(targets[i]);
+                }
+            }
+            from = to;
+        }
+
+        if (OptimizerMetrics.ENABLED) {
+            run.pairs = pairCount;
+            run.optimizeNanos = System.nanoTime() - start;
+            OptimizerMetrics.INSTANCE.addReoptimization(run);
+        }
+        return new Plan(subSets[full], selectivities, null);
+    }
+
+    /**
+     * Considers the plan "sPrime && s" for the union of two disjoint subsets, unless lemma 4.8 or 4.9 rules it out,
+     * and keeps it if it beats the union's current best cost.
+     *
+     * @param sPrime The subset evaluated first, with a branch.
+     * @param s The subset evaluated when sPrime passes.
+     */
+    private void combine(SubSet sPrime, SubSet s) {
+        if (s.lemma48(sPrime)) {
+            if (OptimizerMetrics.ENABLED) {
+                run.lemma48Prunes++;
+            }
+            return;
+        }
+        if (sPrime.p <= 0.5 && s.lemma49(sPrime)) {
+            if (OptimizerMetrics.ENABLED) {
+                run.lemma49Prunes++;
+            }
+            return;
+        }
+
+        double c = SubSet.combinedCost(sPrime, s);
+        SubSet subset = subSets[(int) (sPrime.mask | s.mask)];
+        if (c < subset.c) {
+            subset.c = c;
+            subset.L = sPrime;
+            subset.R = s;
+            if (OptimizerMetrics.ENABLED) {
+                run.improvements++;
+            }
+        }
+    }
+
+    /**
+     * Finds the best split of one subset by pulling every (S', S) pair whose union it is. Ties are broken the way the
+     * sequential loops break them: the candidate whose S comes first in {@link #visitOrder(int)} wins.
+     *
+     * @param target The mask of the subset to reduce. Every proper subset of it must already be final.
+     * @return The number of pairs visited.
+     */
+    private long reduce(int target) {
+        SubSet subset = subSets[target];
+        SubSet bestSPrime = null;
+        SubSet bestS = null;
+        double bestC = subset.c;
+        long pairs = 0;
+        long lemma48Prunes = 0;
+        long lemma49Prunes = 0;
+
+        for (int sMask = (target - 1) & target; sMask != 0; sMask = (sMask - 1) & target) {
+            pairs++;
+            SubSet s = subSets[sMask];
+            SubSet sPrime = subSets[target ^ sMask];
+            if (s.lemma48(sPrime)) {
+                lemma48Prunes++;
+            } else if (sPrime.p <= 0.5 && s.lemma49(sPrime)) {
+                lemma49Prunes++;
+            } else {
+                double c = SubSet.combinedCost(sPrime, s);
+                if (c < bestC || (c == bestC && bestS != null && visitedBefore(sMask, (int) bestS.mask))) {
+                    bestC = c;
+                    bestSPrime = sPrime;
+                    bestS = s;
+                }
+            }
+        }
+
+        if (bestS != null) {
+            subset.c = bestC;
+            subset.L = bestSPrime;
+            subset.R = bestS;
+        }
+        if (OptimizerMetrics.ENABLED) {
+            // one reduction per union, so it lowers the cost at most once; tasks of a wave share the run
+            synchronized (run) {
+                run.lemma48Prunes += lemma48Prunes;
+                run.lemma49Prunes += lemma49Prunes;
+                run.improvements += bestS != null ? 1 : 0;
+            }
+        }
+        return pairs;
     }
 
-    private static List<SubSet> generateSubSets(List<Double> selectivities) {
-        int subSetSize = (int) (Math.pow(2.0, selectivities.size()) - 1);
+    /**
+     * @return true if the subset with mask 'first' comes before the one with mask 'second' in {@link #visitOrder(int)}.
+     */
+    static boolean visitedBefore(int first, int second) {
+        int k1 = Integer.bitCount(first);
+        int k2 = Integer.bitCount(second);
+        return k1 < k2 || (k1 == k2 && first > second);
+    }
+
+    /**
+     * Reduces a contiguous run of same-cardinality subsets of the visit order, splitting it across the pool.
+     */
+    private class Wave extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
 
-        // gets a list initialized to (0, 1, 2... selectivities.size - 1)
+        private final int[] masks; // Subsets in visit order, all of them or the ones to reoptimize.
+        private final int from;    // First position in masks, inclusive.
+        private final int to;      // Last position in masks, exclusive.
+        private final int k;       // Cardinality of every subset in this wave.
 
-        List<Integer> numbers = new ArrayList<>();
-        for (int i = 0; i < selectivities.size(); i++) {
-             numbers.add(i);
+        Wave(int[] masks, int from, int to, int k) {
+            this.masks = masks;
+            this.from = from;
+            this.to = to;
+            this.k = k;
         }
-        // generates the powerset for the list
-        List<List<Integer>> positions = orderedPowerSet(numbers);
-        positions.remove(0); // get rid of the empty set
 
-        // for each one of these lists of lists
-        List<List<Boolean>> bitSetsPowerSets = new ArrayList<>(positions.size());
-        for (List<Integer> position : positions) {
-            bitSetsPowerSets.add(bitSetFromPositions(position, selectivities.size()));
+        @Override
+        protected Long compute() {
+            if (to - from == 1 || ((long) (to - from) << k) <= LEAF_PAIRS) {
+                long pairs = 0;
+                for (int i = from; i < to; i++) {
+                    pairs += reduce(masks[i]);
+                }
+                return pairs;
+            }
+            int middle = (from + to) >>> 1;
+            Wave left = new Wave(masks, from, middle, k);
+            left.fork();
+            long right = new Wave(masks, middle, to, k).compute();
+            return right + left.join();
         }
+    }
+
+    /**
+     * @return The number of (S', S) pairs the last call() visited.
+     */
+    public long pairCount() {
+        return pairCount;
+    }
+
+    /**
+     * Builds the table of all subsets, indexed by their mask.
+     *
+     * @param selectivities The selectivity of each term.
+     * @param costModel The cost model the subsets are priced with.
+     * @return An array where the subset with mask m lives at index m.
+     */
+    static SubSet[] generateSubSets(double[] selectivities, CostModel costModel) {
+        return generateSubSets(selectivities, null, costModel);
+    }
+
+    /**
+     * Builds the table of all subsets, indexed by their mask, for terms with costs of their own.
+     *
+     * @param selectivities The selectivity of each term.
+     * @param costs The cost of the function of each term, or null if every term costs f.
+     * @param costModel The cost model the subsets are priced with.
+     * @return An array where the subset with mask m lives at index m.
+     */
+    static SubSet[] generateSubSets(double[] selectivities, double[] costs, CostModel costModel) {
+        int n = selectivities.length;
+        if (n > MAX_TERMS) {
+            throw new IllegalArgumentException("Cannot optimize more than " + MAX_TERMS + " terms, got " + n);
+        }
+
+        double[] extra = costModel.extraCosts(costs);
+        SubSet[] subSets = new SubSet[1 << n];
+        double[] p = new double[1 << n];
+        double[] e = extra == null ? null : new double[1 << n];
+        p[0] = 1.0;
+        for (int mask = 1; mask < subSets.length; mask++) {
+            // multiplying in the highest term last keeps the product in index order
+            int highest = 31 - Integer.numberOfLeadingZeros(mask);
+            p[mask] = p[mask ^ (1 << highest)] * selectivities[highest];
 
-        List<SubSet> subSets = new ArrayList<>(subSetSize);
-        for (List<Boolean> bitSet : bitSetsPowerSets) {
             SubSet subSet = new SubSet();
-            subSet.k = Collections.frequency(bitSet, true);
-            subSet.selectivities = new Selectivities(bitSet, selectivities);
-            subSet.p = subSet.selectivities.calculateP();
+            subSet.mask = mask;
+            subSet.k = Integer.bitCount(mask);
+            subSet.p = p[mask];
+            if (e != null) {
+                e[mask] = e[mask ^ (1 << highest)] + extra[highest];
+                subSet.e = e[mask];
+            }
+            subSet.costModel = costModel;
 
-            subSets.add(subSet);
+            subSets[mask] = subSet;
         }
         return subSets;
     }
 
     /**
-     * Constructs a bit set with on bits set at the specified positions.
+     * Lists all non-empty subset masks by increasing cardinality, breaking ties by decreasing mask. This is the order
+     * the powerset-based generation used to produce, so ties between equally cheap plans still resolve the same way.
      *
-     * @param positions The list of bits to initialize.
-     * @param length The total size of the bit set.
-     * @return A bit set with bits in 'positions' turned on.
+     * @param n The number of terms.
+     * @return The masks of all 2^n - 1 non-empty subsets.
      */
-    private static List<Boolean> bitSetFromPositions(List<Integer> positions, int length) {
-        List<Boolean> bitSet = new ArrayList<>(Collections.nCopies(length, false));
-        positions.stream().forEach(i -> bitSet.set(i, true));
-        return bitSet;
+    static int[] visitOrder(int n) {
+        int full = (1 << n) - 1;
+
+        // next[k] is the position of the next subset with k terms
+        int[] next = new int[n + 2];
+        for (int mask = 1; mask <= full; mask++) {
+            next[Integer.bitCount(mask) + 1]++;
+        }
+        for (int k = 1; k <= n; k++) {
+            next[k + 1] += next[k];
+        }
+
+        int[] order = new int[full];
+        for (int mask = full; mask >= 1; mask--) {
+            order[next[Integer.bitCount(mask)]++] = mask;
+        }
+        return order;
     }
 
     /**
@@ -275,19 +709,67 @@ public class Optimizer implements Callable<String> {
      *
      * @param subSets The SubSets to initialize;
      */
-    private static void initializeCosts(List<SubSet> subSets) {
-        for (SubSet subSet : subSets) {
-            double logicalAndCost = subSet.logicalAndCost();
-            double noBranchCost = subSet.noBranchCost();
-            if (noBranchCost < logicalAndCost) {
-                subSet.c = noBranchCost;
-                subSet.b = true;
-            } else {
-                subSet.c = logicalAndCost;
-            }
+    static void initializeCosts(SubSet[] subSets) {
+        for (int mask = 1; mask < subSets.length; mask++) {
+            initializeCost(subSets[mask]);
+        }
+        initializeVectorCost(subSets);
+    }
+
+    /**
+     * Prices a subset as a single group, with or without a branch.
+     */
+    private static void initializeCost(SubSet subSet) {
+        double logicalAndCost = subSet.logicalAndCost();
+        double noBranchCost = subSet.noBranchCost();
+        if (noBranchCost < logicalAndCost) {
+            subSet.c = noBranchCost;
+            subSet.b = true;
+        } else {
+            subSet.c = logicalAndCost;
         }
     }
 
+    /**
+     * Lets the subset of all terms be a single group on SIMD lanes, if that is cheaper than its current cost.
+     */
+    private static void initializeVectorCost(SubSet[] subSets) {
+        // a no-branch term only fills SIMD lanes when it scans every row, so only the whole query can use one
+        SubSet all = subSets[subSets.length - 1];
+        if (all != null && all.vectorCost() < all.c) {
+            all.c = all.vectorCost();
+            all.b = true;
+            all.simd = true;
+        }
+    }
+
+    static double[] toArray(List<Double> selectivities) {
+        return selectivities.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    /**
+     * Builds the plan that evaluates every term in a single group, ignoring algorithm 4.11. Useful as a baseline to
+     * compare the optimal plan against.
+     *
+     * @param selectivities The selectivity of each term.
+     * @param costModel The cost model to price the plan with.
+     * @param noBranch true for the no-branch plan, false for a single branching & of all terms.
+     * @return The plan and its cost.
+     */
+    static SubSet singleGroup(List<Double> selectivities, CostModel costModel, boolean noBranch) {
+        SubSet plan = new SubSet();
+        plan.mask = (1L << selectivities.size()) - 1;
+        plan.k = selectivities.size();
+        plan.p = 1.0;
+        for (double selectivity : selectivities) {
+            plan.p *= selectivity;
+        }
+        plan.costModel = costModel;
+        plan.b = noBranch;
+        plan.c = noBranch ? plan.noBranchCost() : plan.logicalAndCost();
+        return plan;
+    }
+
     /**
      * Creates a standard powerset from a given set.
      *
@@ -307,8 +789,8 @@ public class Optimizer implements Callable<String> {
             List<T> newSet = new ArrayList<>();
             newSet.add(head);
             newSet.addAll(set);
-            result.add(newSet);
             result.add(set);
+            result.add(newSet);
         }
         return result;
     }
@@ -317,43 +799,6 @@ public class Optimizer implements Callable<String> {
         return order(powerSet(originalSet));
     }
 
-    public static class Selectivities {
-        List<Boolean> bitSet;     // The bit set that represents selectivities
-        List<Double> values;      // The actual value of the selectivities, mapped by the bit set
-
-        public Selectivities(List<Boolean> bitSet, List<Double> values) {
-            this.bitSet = bitSet;
-            this.values = values;
-        }
-
-        /**
-         * Gets the set of selectivities for the current bit set.
-         *
-         * @return A set of selectivities that match the corresponding bit set.
-         */
-        public List<Double> getSelectivitiesFromBits() {
-            List<Double> rs = new ArrayList<>(Collections.nCopies(values.size(), 0.0));
-            for (int i = 0; i < bitSet.size(); i++) {
-                if (bitSet.get(i)) {
-                    rs.set(i, values.get(i));
-                }
-            }
-            return rs;
-        }
-
-        /**
-         * Calculates the p value for this bit set.
-         *
-         * @return The product of selectivities in this bit set.
-         */
-        public double calculateP() {
-            return getSelectivitiesFromBits()
-                    .stream()
-                    .filter(s -> s != 0.0)
-                    .reduce(1.0, (a, b) -> a * b);
-        }
-    }
-
     public static <T> List<List<T>> order(List<List<T>> list) {
         Collections.sort(list, (o1, o2) -> o1.size() - o2.size());
         return list;
@@ -0,0 +1,160 @@
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and phase timers of {@link Optimizer}, summed over every optimization of the JVM and registered as the
+ * MBean {@value #OBJECT_NAME}.
+ *
+ * Metrics are off unless the system property {@value #PROPERTY} is "on", or "dump" to also append each optimization's
+ * own numbers to its plan, after the cost footer. The switch is a static final field, so with metrics off the JIT
+ * removes every guarded counter update from the optimizer's loops.
+ */
+public class OptimizerMetrics implements OptimizerMetricsMBean {
+
+    static final String PROPERTY = "optimizer.metrics";
+    static final String OBJECT_NAME = "BranchMispredictions:type=OptimizerMetrics";
+
+    static final boolean DUMP = "dump".equals(System.getProperty(PROPERTY));
+    static final boolean ENABLED = DUMP || "on".equals(System.getProperty(PROPERTY));
+
+    static final OptimizerMetrics INSTANCE = new OptimizerMetrics();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                System.err.println("Could not register " + OBJECT_NAME + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * The numbers of a single optimization. Only the optimizer that owns it writes to it.
+     */
+    static final class Run {
+        long pairs;             // (S', S) pairs visited.
+        long lemma48Prunes;     // Pairs ruled out by lemma 4.8.
+        long lemma49Prunes;     // Pairs ruled out by lemma 4.9, and not already by lemma 4.8.
+        long improvements;      // Times the best cost of a union was lowered; at most once per union in parallel waves.
+        long generateNanos;     // Building the subset table and the visit order.
+        long initializeNanos;   // Pricing every subset as a single group.
+        long optimizeNanos;     // The dynamic program itself.
+
+        @Override
+        public String toString() {
+            return "pairs: " + pairs + ", lemma48: " + lemma48Prunes + ", lemma49: " + lemma49Prunes
+                    + ", improvements: " + improvements + "\n"
+                    + "ns: generate " + generateNanos + ", initialize " + initializeNanos
+                    + ", optimize " + optimizeNanos + "\n";
+        }
+    }
+
+    private final LongAdder optimizations = new LongAdder();
+    private final LongAdder reoptimizations = new LongAdder();
+    private final LongAdder pairs = new LongAdder();
+    private final LongAdder lemma48Prunes = new LongAdder();
+    private final LongAdder lemma49Prunes = new LongAdder();
+    private final LongAdder improvements = new LongAdder();
+    private final LongAdder generateNanos = new LongAdder();
+    private final LongAdder initializeNanos = new LongAdder();
+    private final LongAdder optimizeNanos = new LongAdder();
+
+    /**
+     * Adds a finished optimization to the totals.
+     */
+    void add(Run run) {
+        optimizations.increment();
+        pairs.add(run.pairs);
+        lemma48Prunes.add(run.lemma48Prunes);
+        lemma49Prunes.add(run.lemma49Prunes);
+        improvements.add(run.improvements);
+        generateNanos.add(run.generateNanos);
+        initializeNanos.add(run.initializeNanos);
+        optimizeNanos.add(run.optimizeNanos);
+    }
+
+    /**
+     * Adds a finished {@link Optimizer#reoptimize} to the totals. It reuses the subset table of an optimization
+     * already added, so it counts as a reoptimization and only its pairs, prunes and time are added; the time of
+     * pricing its subsets again is part of its optimize time.
+     */
+    void addReoptimization(Run run) {
+        reoptimizations.increment();
+        pairs.add(run.pairs);
+        lemma48Prunes.add(run.lemma48Prunes);
+        lemma49Prunes.add(run.lemma49Prunes);
+        improvements.add(run.improvements);
+        optimizeNanos.add(run.optimizeNanos);
+    }
+
+    @Override
+    public long getOptimizations() {
+        return optimizations.sum();
+    }
+
+    @Override
+    public long getReoptimizations() {
+        return reoptimizations.sum();
+    }
+
+    @Override
+    public long getPairs() {
+        return pairs.sum();
+    }
+
+    @Override
+    public long getLemma48Prunes() {
+        return lemma48Prunes.sum();
+    }
+
+    @Override
+    public long getLemma49Prunes() {
+        return lemma49Prunes.sum();
+    }
+
+    @Override
+    public long getImprovements() {
+        return improvements.sum();
+    }
+
+    @Override
+    public long getGenerateNanos() {
+        return generateNanos.sum();
+    }
+
+    @Override
+    public long getInitializeNanos() {
+        return initializeNanos.sum();
+    }
+
+    @Override
+    public long getOptimizeNanos() {
+        return optimizeNanos.sum();
+    }
+
+    @Override
+    public void reset() {
+        optimizations.reset();
+        reoptimizations.reset();
+        pairs.reset();
+        lemma48Prunes.reset();
+        lemma49Prunes.reset();
+        improvements.reset();
+        generateNanos.reset();
+        initializeNanos.reset();
+        optimizeNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "optimizations: " + getOptimizations() + ", reoptimizations: " + getReoptimizations()
+                + ", pairs: " + getPairs()
+                + ", lemma48: " + getLemma48Prunes() + ", lemma49: " + getLemma49Prunes()
+                + ", improvements: " + getImprovements()
+                + ", ns: generate " + getGenerateNanos() + ", initialize " + getInitializeNanos()
+                + ", optimize " + getOptimizeNanos();
+    }
+}
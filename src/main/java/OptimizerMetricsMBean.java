@@ -0,0 +1,26 @@
+/**
+ * Management interface of {@link OptimizerMetrics}. Every value is a total over all optimizations since the last
+ * reset; times are in nanoseconds.
+ */
+public interface OptimizerMetricsMBean {
+
+    long getOptimizations();
+
+    long getReoptimizations();
+
+    long getPairs();
+
+    long getLemma48Prunes();
+
+    long getLemma49Prunes();
+
+    long getImprovements();
+
+    long getGenerateNanos();
+
+    long getInitializeNanos();
+
+    long getOptimizeNanos();
+
+    void reset();
+}
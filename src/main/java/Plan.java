@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable, optimized plan for one query: the terms in the order they are evaluated, grouped into &amp;-terms that
+ * are joined with &amp;&amp;, whether the last group is added to j without a branch, and the predicted cost per row.
+ *
+ * Building a plan only flattens the optimizer's tree, so callers that need the cost or the term order pay nothing for
+ * text. The C code printed by {@link Main} and the Java loop body compiled by {@link PlanCompiler} are rendered the
+ * first time they are asked for and kept.
+ */
+public final class Plan {
+
+    private final double[] selectivities;
+    private final int[][] conditions;   // Terms of each group of the if condition, evaluated with & and joined with &&.
+    private final int[] noBranch;       // Terms added to j without a branch, or null if every match is written with j++.
+    private final boolean simd;         // Whether the no-branch group is evaluated on SIMD lanes.
+    private final double cost;
+
+    private final Optimizer.SubSet root; // Kept to render C code, which follows the shape of the tree.
+    private final int[] terms;           // Maps the term indices of the tree to the caller's, or null.
+    private final String trailer;        // Printed after the cost footer, such as optimizer metrics; may be empty.
+
+    private volatile String c;
+    private volatile String java;
+    private volatile String text;
+
+    /**
+     * @param root The optimal plan found by an optimizer. It must not be changed afterwards.
+     * @param selectivities The selectivity of each term, in the caller's order.
+     * @param terms Maps each term index of the tree to the caller's index, or null if they are the same.
+     */
+    Plan(Optimizer.SubSet root, double[] selectivities, int[] terms) {
+        this(root, selectivities, terms, "");
+    }
+
+    Plan(Optimizer.SubSet root, double[] selectivities, int[] terms, String trailer) {
+        List<int[]> groups = new ArrayList<>();
+        int[] tail = null;
+        boolean vector = false;
+
+        // mirrors optimalAsString: a leaf is either "if (group)" or "j += group", otherwise the tree is the condition
+        if (root.L == null && root.R == null) {
+            vector = root.simd;
+            if (root.b) {
+                tail = terms(root.mask, terms);
+            } else {
+                groups.add(terms(root.mask, terms));
+            }
+        } else {
+            flatten(root, terms, groups);
+            Optimizer.SubSet rightmost = root.rightMost();
+            if (rightmost.b) {
+                tail = terms(rightmost.mask, terms);
+            }
+        }
+
+        this.selectivities = selectivities.clone();
+        this.conditions = groups.toArray(new int[groups.size()][]);
+        this.noBranch = tail;
+        this.simd = vector;
+        this.cost = root.c;
+        this.root = root;
+        this.terms = terms == null ? null : terms.clone();
+        this.trailer = trailer;
+    }
+
+    /**
+     * Collects the groups of a sub plan's condition in the order SubSet.toString() prints them.
+     */
+    private static void flatten(Optimizer.SubSet plan, int[] terms, List<int[]> groups) {
+        if (plan.L == null && plan.R == null) {
+            groups.add(terms(plan.mask, terms));
+        } else if (plan.R.R == null && plan.R.b) {
+            flatten(plan.L, terms, groups);
+        } else {
+            flatten(plan.L, terms, groups);
+            flatten(plan.R, terms, groups);
+        }
+    }
+
+    /**
+     * @return The caller's indices of the terms of a subset, in increasing order as they are printed.
+     */
+    private static int[] terms(long mask, int[] terms) {
+        int[] group = new int[Long.bitCount(mask)];
+        int next = 0;
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            int term = Long.numberOfTrailingZeros(bits);
+            group[next++] = terms == null ? term : terms[term];
+        }
+        Arrays.sort(group);
+        return group;
+    }
+
+    /**
+     * @return The predicted cost of the plan per row.
+     */
+    public double cost() {
+        return cost;
+    }
+
+    /**
+     * @param selectivities The selectivity of each term, in the caller's order.
+     * @return What this plan would cost per row if its terms had these selectivities instead.
+     */
+    public double costAt(double[] selectivities) {
+        if (selectivities.length != this.selectivities.length) {
+            throw new IllegalArgumentException("Expected " + this.selectivities.length + " selectivities, got "
+                    + selectivities.length);
+        }
+        return root.costAt(selectivities, terms);
+    }
+
+    /**
+     * @return The selectivity of each term, in the caller's order.
+     */
+    public double[] selectivities() {
+        return selectivities.clone();
+    }
+
+    /**
+     * @return The number of groups, the no-branch group included.
+     */
+    public int groupCount() {
+        return conditions.length + (noBranch == null ? 0 : 1);
+    }
+
+    /**
+     * @param group The position of the group, from 0 to groupCount() - 1.
+     * @return The indices of the terms of the group.
+     */
+    public int[] group(int group) {
+        return (group < conditions.length ? conditions[group] : noBranch).clone();
+    }
+
+    /**
+     * @param group The position of the group, from 0 to groupCount() - 1.
+     * @return Whether the group is added to j without a branch; only the last group can be.
+     */
+    public boolean noBranch(int group) {
+        return group >= conditions.length;
+    }
+
+    /**
+     * @return Whether the plan is a single no-branch group evaluated on SIMD lanes.
+     */
+    public boolean simd() {
+        return simd;
+    }
+
+    /**
+     * @return The indices of all terms, in the order the plan evaluates them.
+     */
+    public int[] order() {
+        int[] order = new int[selectivities.length];
+        int next = 0;
+        for (int group = 0; group < groupCount(); group++) {
+            for (int term : group(group)) {
+                order[next++] = term;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return The groups of the if condition, not copied.
+     */
+    int[][] conditions() {
+        return conditions;
+    }
+
+    /**
+     * @return The no-branch group, or null, not copied.
+     */
+    int[] tail() {
+        return noBranch;
+    }
+
+    /**
+     * @return The body of the C scan loop that runs the plan, with the terms numbered from 1.
+     */
+    public String toC() {
+        String code = c;
+        if (code == null) {
+            code = root.code(terms);
+            c = code;
+        }
+        return code;
+    }
+
+    /**
+     * @return The body of a Java scan loop that runs the plan, as compiled by {@link PlanCompiler}.
+     */
+    public String toJava() {
+        String code = java;
+        if (code == null) {
+            code = PlanCompiler.loop(new PlanExecutor(this));
+            java = code;
+        }
+        return code;
+    }
+
+    /**
+     * @return The plan as printed by {@link Main}: the selectivities, the C code and the cost.
+     */
+    @Override
+    public String toString() {
+        String printed = text;
+        if (printed == null) {
+            printed = root.optimalAsString(selectivities, terms) + trailer;
+            text = printed;
+        }
+        return printed;
+    }
+}
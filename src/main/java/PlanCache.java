@@ -0,0 +1,273 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+/**
+ * A bounded LRU cache of optimal plans that sits in front of {@link Optimizer}.
+ *
+ * Plans are keyed by the sorted selectivities and the cost model, so every permutation of a query shares one entry.
+ * A cached plan is optimized for the sorted order and its terms are renamed back to the caller's order when it is
+ * rendered. Because the product of the selectivities is taken in a different order, the printed cost of a permuted
+ * query may differ from a fresh optimization in the last digit, and plans that tie on cost may be picked differently.
+ *
+ * The cache is bounded both by its number of plans and by their total number of terms: a plan and its key take
+ * memory in proportion to the terms of the query, so the second bound keeps a few large queries from taking the room
+ * of many small ones. Least recently used plans are evicted until both bounds hold.
+ *
+ * A query that misses while the same query is already being optimized waits for that optimization instead of running
+ * its own, and counts as a hit.
+ */
+public class PlanCache {
+
+    private final int capacity;
+    private final long termCapacity;
+    private final LinkedHashMap<Key, Optimizer.SubSet> plans = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, CompletableFuture<Optimizer.SubSet>> pending = new HashMap<>(); // Optimizations in flight.
+    private long terms;                 // Terms of every cached plan.
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PlanCache(int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity The most plans kept.
+     * @param termCapacity The most terms kept, summed over the queries of every plan.
+     */
+    public PlanCache(int capacity, long termCapacity) {
+        this.capacity = capacity;
+        this.termCapacity = termCapacity;
+    }
+
+    /**
+     * Finds the optimal plan for a query, optimizing it only if neither it nor a permutation of it is cached.
+     *
+     * @param selectivities The selectivity of each term, in the caller's order.
+     * @param costModel The cost model to optimize with.
+     * @param enumeration How to enumerate pairs if the plan has to be optimized.
+     * @return The optimal plan, with the caller's term indices.
+     */
+    public Plan optimize(List<Double> selectivities, CostModel costModel, Optimizer.Enumeration enumeration) {
+        return optimize(Optimizer.toArray(selectivities), costModel, enumeration);
+    }
+
+    /**
+     * @see #optimize(List, CostModel, Optimizer.Enumeration)
+     */
+    public Plan optimize(double[] selectivities, CostModel costModel, Optimizer.Enumeration enumeration) {
+        return optimize(selectivities, null, costModel, enumeration);
+    }
+
+    /**
+     * Finds the optimal plan for a query whose terms have costs of their own. Permutations of the same (selectivity,
+     * cost) pairs share one entry.
+     *
+     * @param costs The cost of the function of each term, or null if every term costs f.
+     * @see #optimize(List, CostModel, Optimizer.Enumeration)
+     */
+    public Plan optimize(double[] selectivities, double[] costs, CostModel costModel,
+                         Optimizer.Enumeration enumeration) {
+        // terms[i] is the caller's index of the i-th smallest selectivity
+        int[] terms = sortedTerms(selectivities, costs);
+        double[] sorted = new double[terms.length];
+        double[] sortedCosts = costs == null ? null : new double[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            sorted[i] = selectivities[terms[i]];
+            if (costs != null) {
+                sortedCosts[i] = costs[terms[i]];
+            }
+        }
+        Key key = new Key(sorted, sortedCosts, costModel);
+
+        Optimizer.SubSet plan;
+        CompletableFuture<Optimizer.SubSet> optimization;
+        boolean optimizes = false;
+        synchronized (this) {
+            plan = plans.get(key);
+            optimization = pending.get(key);
+            if (plan != null || optimization != null) {
+                hits++;
+            } else {
+                misses++;
+                optimization = new CompletableFuture<>();
+                pending.put(key, optimization);
+                optimizes = true;
+            }
+        }
+
+        if (optimizes) {
+            try {
+                plan = new Optimizer(sorted, sortedCosts, costModel, enumeration).optimize();
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    pending.remove(key);
+                }
+                optimization.completeExceptionally(e);
+                throw e;
+            }
+            synchronized (this) {
+                pending.remove(key);
+                put(key, plan);
+            }
+            optimization.complete(plan);
+        } else if (plan == null) {
+            try {
+                plan = optimization.join();
+            } catch (CompletionException e) {
+                // the optimization failed for every query waiting on it
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return new Plan(plan, selectivities, terms);
+    }
+
+    /**
+     * Adds a plan, then evicts the least recently used plans until both bounds hold again.
+     */
+    private void put(Key key, Optimizer.SubSet plan) {
+        if (plans.put(key, plan) == null) {
+            terms += key.selectivities.length;
+        }
+        Iterator<Map.Entry<Key, Optimizer.SubSet>> eldest = plans.entrySet().iterator();
+        while ((plans.size() > capacity || terms > termCapacity) && eldest.hasNext()) {
+            terms -= eldest.next().getKey().selectivities.length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param selectivities The selectivity of each term.
+     * @return The term indices ordered by increasing selectivity, ties kept in index order.
+     */
+    static int[] sortedTerms(double[] selectivities) {
+        return sortedTerms(selectivities, null);
+    }
+
+    /**
+     * @param selectivities The selectivity of each term.
+     * @param costs The cost of each term, or null.
+     * @return The term indices ordered by increasing selectivity, then cost, ties kept in index order.
+     */
+    static int[] sortedTerms(double[] selectivities, double[] costs) {
+        return IntStream.range(0, selectivities.length)
+                .boxed()
+                .sorted((i, j) -> {
+                    int bySelectivity = Double.compare(selectivities[i], selectivities[j]);
+                    return bySelectivity != 0 || costs == null ? bySelectivity : Double.compare(costs[i], costs[j]);
+                })
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /**
+     * @return The terms of every cached plan, summed.
+     */
+    public synchronized long terms() {
+        return terms;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "plan cache: " + plans.size() + "/" + capacity + " plans, " + terms + " terms, " + hits + " hits, "
+                + misses + " misses, " + evictions + " evictions";
+    }
+
+    /**
+     * Writes every cached plan to a file, least recently used first.
+     *
+     * @param file The file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void save(Path file) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(plans.size());
+            for (Map.Entry<Key, Optimizer.SubSet> entry : plans.entrySet()) {
+                out.writeObject(entry.getKey());
+                out.writeObject(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds the plans saved by {@link #save(Path)} to this cache. Counters are not affected.
+     *
+     * @param file The file to read.
+     * @throws IOException if the file cannot be read or was not written by this class.
+     */
+    public synchronized void load(Path file) throws IOException {
+        long evicted = evictions;
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                Key key = (Key) in.readObject();
+                Optimizer.SubSet plan = (Optimizer.SubSet) in.readObject();
+                put(key, plan);
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Not a plan cache file: " + file, e);
+        } finally {
+            evictions = evicted;
+        }
+    }
+
+    private static final class Key implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] selectivities; // Sorted in increasing order.
+        private final double[] costs;         // The cost of each term in the same order, or null.
+        private final CostModel costModel;
+
+        Key(double[] selectivities, double[] costs, CostModel costModel) {
+            this.selectivities = selectivities;
+            this.costs = costs;
+            this.costModel = costModel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Arrays.equals(selectivities, other.selectivities) && Arrays.equals(costs, other.costs)
+                    && costModel.equals(other.costModel);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(selectivities) + Arrays.hashCode(costs)) + costModel.hashCode();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a plan produced by {@link Optimizer} into a class of its own at runtime, so that the scan loop is
+ * straight-line code with the same shape as the C code the optimizer prints:
+ *
+ * <pre>
+ * if (t3[o3[i]] &amp;&amp; (t2[o2[i]] &amp; t4[o4[i]])) {
+ *     answer[j] = i;
+ *     j += (t1[o1[i]] &amp; t5[o5[i]]) ? 1 : 0;
+ * }
+ * </pre>
+ *
+ * The generated source is compiled in memory with the system Java compiler and its static run method is called
+ * through a MethodHandle once per scan. Compiled plans are cached by the shape of their loop, so plans that only
+ * differ in cost share one class. Without a system compiler, which is the case on a bare JRE, plans are interpreted
+ * by {@link PlanExecutor} instead.
+ */
+public class PlanCompiler {
+
+    private static final Map<String, Selection> compiled = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger classes = new AtomicInteger();
+
+    private static final MethodType RUN = MethodType.methodType(
+            int.class, boolean[][].class, int[][].class, int.class, int[].class);
+
+    /**
+     * @param plan The plan to compile.
+     * @return A selection that runs the plan with generated code, or interprets it if no compiler is available. A
+     * plan the optimizer priced on SIMD lanes runs vectorized instead, when the vector API is available.
+     */
+    public static Selection compile(Optimizer.SubSet plan) {
+        PlanExecutor executor = new PlanExecutor(plan);
+        Selection vectorized = executor.simd ? PlanExecutor.vectorized(executor.noBranch) : null;
+        if (vectorized != null) {
+            return vectorized;
+        }
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            return executor;
+        }
+        int terms = 0;
+        for (int[] group : executor.groups) {
+            for (int term : group) {
+                terms = Math.max(terms, term + 1);
+            }
+        }
+        if (executor.noBranch != null) {
+            for (int term : executor.noBranch) {
+                terms = Math.max(terms, term + 1);
+            }
+        }
+        int termCount = terms;
+        return compiled.computeIfAbsent(loop(executor), loop -> define(javac, loop, termCount));
+    }
+
+    /**
+     * @return The number of distinct plan shapes compiled so far.
+     */
+    public static int size() {
+        return compiled.size();
+    }
+
+    /**
+     * Renders the body of the scan loop of a flattened plan.
+     */
+    static String loop(PlanExecutor executor) {
+        StringBuilder sb = new StringBuilder();
+        if (executor.groups.length == 0) {
+            sb.append("answer[j] = i;\n");
+            sb.append("j += ").append(group(executor.noBranch)).append(" ? 1 : 0;\n");
+            return sb.toString();
+        }
+
+        sb.append("if (");
+        for (int g = 0; g < executor.groups.length; g++) {
+            if (g > 0) {
+                sb.append(" && ");
+            }
+            sb.append(group(executor.groups[g]));
+        }
+        sb.append(") {\n");
+        if (executor.noBranch == null) {
+            sb.append("\tanswer[j++] = i;\n");
+        } else {
+            sb.append("\tanswer[j] = i;\n");
+            sb.append("\tj += ").append(group(executor.noBranch)).append(" ? 1 : 0;\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String group(int[] terms) {
+        StringBuilder sb = new StringBuilder();
+        if (terms.length > 1) {
+            sb.append("(");
+        }
+        for (int term : terms) {
+            sb.append("t").append(term + 1).append("[o").append(term + 1).append("[i]]").append(" & ");
+        }
+        sb.setLength(sb.length() - 3);
+        if (terms.length > 1) {
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Wraps a loop body into a class, compiles it and loads it.
+     *
+     * @param loop The body of the scan loop.
+     * @param terms One more than the highest term index the loop reads.
+     */
+    private static Selection define(JavaCompiler javac, String loop, int terms) {
+        String name = "CompiledPlan" + classes.incrementAndGet();
+
+        // the term arrays are hoisted into locals named like the ones in the printed code
+        StringBuilder source = new StringBuilder();
+        source.append("public final class ").append(name).append(" {\n");
+        source.append("public static int run(boolean[][] t, int[][] o, int rows, int[] answer) {\n");
+        for (int term = 1; term <= terms; term++) {
+            source.append("boolean[] t").append(term).append(" = t[").append(term - 1).append("];\n");
+            source.append("int[] o").append(term).append(" = o[").append(term - 1).append("];\n");
+        }
+        source.append("int j = 0;\n");
+        source.append("for (int i = 0; i < rows; i++) {\n").append(loop).append("}\n");
+        source.append("return j;\n");
+        source.append("}\n}\n");
+
+        Map<String, byte[]> classFiles = new HashMap<>();
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(javac.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className + ".class"), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return new ByteArrayOutputStream() {
+                            @Override
+                            public void close() {
+                                classFiles.put(className, toByteArray());
+                            }
+                        };
+                    }
+                };
+            }
+        };
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        if (!javac.getTask(null, fileManager, diagnostics, null, null, Collections.singletonList(sourceFile)).call()) {
+            throw new IllegalStateException("Cannot compile plan:\n" + source + diagnostics.getDiagnostics());
+        }
+
+        ClassLoader loader = new ClassLoader(PlanCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String className) throws ClassNotFoundException {
+                byte[] bytes = classFiles.get(className);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(className);
+                }
+                return defineClass(className, bytes, 0, bytes.length);
+            }
+        };
+
+        try {
+            MethodHandle run = MethodHandles.publicLookup().findStatic(loader.loadClass(name), "run", RUN);
+            return (t, o, rows, answer) -> {
+                try {
+                    return (int) run.invokeExact(t, o, rows, answer);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load compiled plan " + name, e);
+        }
+    }
+}
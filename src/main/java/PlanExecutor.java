@@ -0,0 +1,213 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Runs a plan produced by {@link Optimizer} over columnar data, the way the C code printed by
+ * {@link Optimizer.SubSet#optimalAsString(List)} would.
+ *
+ * Term i of a plan reads o[i][row] and passes when t[i][o[i][row]] is true, just like t1[o1[i]] in the printed code.
+ * The plan is flattened by {@link Plan} into the groups of the if condition, joined with &&, and the optional group
+ * that is added to j without a branch. Running the plan allocates nothing.
+ */
+public class PlanExecutor implements Selection {
+
+    final int[][] groups;           // Terms of each group of the if condition, evaluated with & and joined with &&.
+    final int[] noBranch;           // Terms added to j without a branch, or null if every match is written with j++.
+    final boolean simd;             // Whether the optimizer priced the plan as one no-branch group on SIMD lanes.
+    private final double cost;      // Cost the optimizer predicted for the plan, per row.
+
+    public PlanExecutor(Optimizer.SubSet plan) {
+        // the selectivities are only printed in the header of the C code, never needed to run the plan
+        this(new Plan(plan, new double[plan.k], null));
+    }
+
+    public PlanExecutor(Plan plan) {
+        this.groups = plan.conditions();
+        this.noBranch = plan.tail();
+        this.simd = plan.simd();
+        this.cost = plan.cost();
+    }
+
+    /**
+     * Builds the vectorized form of a no-branch group, compiled separately because it needs the incubating vector
+     * API: Java 17 or later started with --add-modules jdk.incubator.vector.
+     */
+    private static final Constructor<?> VECTORIZED = vectorizedConstructor();
+
+    private static Constructor<?> vectorizedConstructor() {
+        try {
+            Constructor<?> constructor = Class.forName("VectorNoBranch").getDeclaredConstructor(int[].class);
+            constructor.newInstance((Object) new int[]{0});
+            return constructor;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param terms The terms of a no-branch group that makes up a whole plan.
+     * @return A selection that evaluates the group on SIMD lanes, or null if the vector API is not available.
+     */
+    static Selection vectorized(int[] terms) {
+        if (VECTORIZED == null) {
+            return null;
+        }
+        try {
+            return (Selection) VECTORIZED.newInstance((Object) terms);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param plan The plan to run.
+     * @return A selection that runs the plan on SIMD lanes when the optimizer chose that and the vector API is
+     * available, and interprets it otherwise.
+     */
+    public static Selection of(Optimizer.SubSet plan) {
+        PlanExecutor executor = new PlanExecutor(plan);
+        Selection vectorized = executor.simd ? vectorized(executor.noBranch) : null;
+        return vectorized != null ? vectorized : executor;
+    }
+
+    @Override
+    public int run(boolean[][] t, int[][] o, int rows, int[] answer) {
+        return run(t, o, 0, rows, answer, 0);
+    }
+
+    /**
+     * Runs the plan over the rows from 'from' to 'to', appending the matching rows to answer after the first j.
+     *
+     * @return The number of rows in answer afterwards.
+     */
+    int run(boolean[][] t, int[][] o, int from, int to, int[] answer, int j) {
+        scan:
+        for (int i = from; i < to; i++) {
+            for (int[] group : groups) {
+                boolean pass = true;
+                for (int term : group) {
+                    pass &= t[term][o[term][i]];
+                }
+                if (!pass) {
+                    continue scan;
+                }
+            }
+            if (noBranch == null) {
+                answer[j++] = i;
+            } else {
+                boolean pass = true;
+                for (int term : noBranch) {
+                    pass &= t[term][o[term][i]];
+                }
+                answer[j] = i;
+                j += pass ? 1 : 0;
+            }
+        }
+        return j;
+    }
+
+    /**
+     * @return The cost per row the optimizer predicted for this plan.
+     */
+    public double cost() {
+        return cost;
+    }
+
+    /**
+     * Size of the value domain of the synthetic columns.
+     */
+    static final int DOMAIN = 1024;
+
+    /**
+     * Generates a column of uniformly distributed values in [0, DOMAIN).
+     */
+    static int[] column(int rows, Random random) {
+        int[] column = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            column[i] = random.nextInt(DOMAIN);
+        }
+        return column;
+    }
+
+    /**
+     * Generates the function table of a term that passes for a given fraction of a uniform column.
+     */
+    static boolean[] table(double selectivity) {
+        boolean[] table = new boolean[DOMAIN];
+        for (int v = 0; v < DOMAIN * selectivity; v++) {
+            table[v] = true;
+        }
+        return table;
+    }
+
+    /**
+     * Measures the best time per row of a plan over several runs.
+     *
+     * @return Nanoseconds per row.
+     */
+    static double measure(Selection selection, boolean[][] t, int[][] o, int rows, int[] answer, int runs) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            selection.run(t, o, rows, answer);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / rows;
+    }
+
+    /**
+     * Runs the optimal plan of every query, and the two plans that put all terms in one group, over synthetic data
+     * with the query's selectivities, and prints the measured time per row next to the predicted cost. Each plan is
+     * run both interpreted and compiled by {@link PlanCompiler}.
+     *
+     * Usage: PlanExecutor query-file config-file [rows]
+     */
+    public static void main(String[] args) throws IOException {
+        String queryFile  = args[0];
+        String configFile = args[1];
+        int rows          = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 20;
+
+        Properties costs = new Properties();
+        costs.load(new FileInputStream(configFile));
+        CostModel costModel = Optimizer.parseCostModel(costs);
+
+        Random random = new Random(42);
+        int[] answer = new int[rows];
+        for (List<Double> selectivities : Main.parseFileToDoubleList(Files.readAllLines(Paths.get(queryFile), Charset.defaultCharset()))) {
+            int n = selectivities.size();
+            boolean[][] t = new boolean[n][];
+            int[][] o = new int[n][];
+            for (int i = 0; i < n; i++) {
+                t[i] = table(selectivities.get(i));
+                o[i] = column(rows, random);
+            }
+
+            System.out.println(selectivities);
+            report("optimal", new Optimizer(selectivities, costModel).optimize(), t, o, rows, answer);
+            report("& branch", Optimizer.singleGroup(selectivities, costModel, false), t, o, rows, answer);
+            report("no-branch", Optimizer.singleGroup(selectivities, costModel, true), t, o, rows, answer);
+        }
+    }
+
+    private static void report(String name, Optimizer.SubSet plan, boolean[][] t, int[][] o, int rows, int[] answer) {
+        PlanExecutor interpreted = new PlanExecutor(plan);
+        Selection compiled = PlanCompiler.compile(plan);
+
+        // the first runs let the JIT compile the loops
+        measure(interpreted, t, o, rows, answer, 5);
+        measure(compiled, t, o, rows, answer, 5);
+        double interpretedNanos = measure(interpreted, t, o, rows, answer, 5);
+        double compiledNanos = measure(compiled, t, o, rows, answer, 5);
+
+        System.out.println(String.format("  %-10s predicted %8.3f   interpreted %7.3f ns/row   compiled %7.3f ns/row" +
+                        "   %6.3f ns per cost unit",
+                name, plan.c, interpretedNanos, compiledNanos, compiledNanos / plan.c));
+    }
+}
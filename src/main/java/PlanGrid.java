@@ -0,0 +1,462 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.IntStream;
+
+/**
+ * Plans precomputed offline for every query with a fixed number of terms and a fixed cost model, so a new selectivity
+ * estimate is planned by a table lookup instead of an optimization.
+ *
+ * Selectivity space [0, 1]^n is cut into steps^n cells. Each cell gets the optimal plan at its center, and neighbouring
+ * cells whose plans have the same shape, the same terms grouped and joined the same way, are merged into regions. A
+ * lookup quantizes the selectivities to a cell and prices the plan of its region at them, which takes time linear in
+ * the number of terms and independent of the grid.
+ *
+ * The regret of a region is how much more its plan costs than the optimal plan, at worst, over every grid vertex of its
+ * cells. It is measured at the vertices only and is not a guaranteed bound: a query between them may lose more,
+ * though less as the grid gets finer.
+ */
+public class PlanGrid {
+
+    /**
+     * Largest number of cells a grid can have: the region of each cell is kept in an int array.
+     */
+    static final int MAX_CELLS = 1 << 24;
+
+    private static final int MAGIC = 0x504c4752; // "PLGR"
+
+    // flags of a node of a plan shape
+    private static final byte LEAF = 1;
+    private static final byte NO_BRANCH = 2;
+    private static final byte SIMD = 4;
+
+    private final int n;
+    private final int steps;
+    private final CostModel costModel;
+
+    private final int[][] shapeMasks;   // The mask of every node of each plan shape, in preorder.
+    private final byte[][] shapeFlags;  // The flags of the same nodes.
+    private final int[] regionShape;
+    private final double[] regionRegret;
+    private final int[] cellRegion;     // Indexed by the cell, whose coordinate along term i has weight steps^i.
+
+    private PlanGrid(int n, int steps, CostModel costModel, int[][] shapeMasks, byte[][] shapeFlags,
+                     int[] regionShape, double[] regionRegret, int[] cellRegion) {
+        this.n = n;
+        this.steps = steps;
+        this.costModel = costModel;
+        this.shapeMasks = shapeMasks;
+        this.shapeFlags = shapeFlags;
+        this.regionShape = regionShape;
+        this.regionRegret = regionRegret;
+        this.cellRegion = cellRegion;
+    }
+
+    /**
+     * A precomputed plan for one query and the regret measured for its region.
+     */
+    public static final class Entry {
+
+        private final Plan plan;
+        private final double regret;
+
+        Entry(Plan plan, double regret) {
+            this.plan = plan;
+            this.regret = regret;
+        }
+
+        /**
+         * @return The plan of the query's region, priced at the query's selectivities.
+         */
+        public Plan plan() {
+            return plan;
+        }
+
+        /**
+         * @return How much more the plan of the region costs than the optimal plan, at worst over the grid vertices of
+         * the region. Not a guaranteed bound for the query itself, which may lie between vertices.
+         */
+        public double regret() {
+            return regret;
+        }
+    }
+
+    /**
+     * Optimizes the center of every cell and the vertices around them, and merges the cells into regions.
+     *
+     * @param n The number of terms of the queries.
+     * @param steps The number of cells along each selectivity.
+     * @param costModel The cost model to optimize with.
+     * @return The grid of plans.
+     */
+    public static PlanGrid build(int n, int steps, CostModel costModel) {
+        if (n < 1 || n > Optimizer.MAX_TERMS || steps < 1) {
+            throw new IllegalArgumentException("Need 1 to " + Optimizer.MAX_TERMS + " terms and 1 or more steps, got "
+                    + n + " terms and " + steps + " steps");
+        }
+        double size = Math.pow(steps + 1, n);
+        if (size > MAX_CELLS) {
+            throw new IllegalArgumentException("A grid of " + steps + " steps over " + n + " terms has more than "
+                    + MAX_CELLS + " vertices");
+        }
+        int cells = (int) Math.round(Math.pow(steps, n));
+        int vertices = (int) Math.round(size);
+
+        // the optimal cost at every vertex, to measure regret against
+        double[] optimal = new double[vertices];
+        IntStream.range(0, vertices).parallel().forEach(vertex ->
+                optimal[vertex] = optimize(coordinates(vertex, steps + 1, n, 0.0, steps), costModel).c);
+
+        // the optimal plan at the center of every cell
+        Optimizer.SubSet[] plans = new Optimizer.SubSet[cells];
+        IntStream.range(0, cells).parallel().forEach(cell ->
+                plans[cell] = optimize(coordinates(cell, steps, n, 0.5, steps), costModel));
+
+        List<int[]> masks = new ArrayList<>();
+        List<byte[]> flags = new ArrayList<>();
+        Map<String, Integer> shapes = new HashMap<>();
+        int[] cellShape = new int[cells];
+        for (int cell = 0; cell < cells; cell++) {
+            List<Optimizer.SubSet> nodes = new ArrayList<>();
+            List<Byte> nodeFlags = new ArrayList<>();
+            encode(plans[cell], true, nodes, nodeFlags);
+            int[] shapeMask = new int[nodes.size()];
+            byte[] shapeFlag = new byte[nodes.size()];
+            for (int i = 0; i < shapeMask.length; i++) {
+                shapeMask[i] = (int) nodes.get(i).mask;
+                shapeFlag[i] = nodeFlags.get(i);
+            }
+            String key = Arrays.toString(shapeMask) + Arrays.toString(shapeFlag);
+            Integer shape = shapes.get(key);
+            if (shape == null) {
+                shape = masks.size();
+                shapes.put(key, shape);
+                masks.add(shapeMask);
+                flags.add(shapeFlag);
+            }
+            cellShape[cell] = shape;
+            plans[cell] = null;
+        }
+        int[][] shapeMasks = masks.toArray(new int[0][]);
+        byte[][] shapeFlags = flags.toArray(new byte[0][]);
+
+        // neighbours with the same shape are joined, along every term
+        int[] parent = new int[cells];
+        for (int cell = 0; cell < cells; cell++) {
+            parent[cell] = cell;
+        }
+        for (int stride = 1; stride < cells; stride *= steps) {
+            for (int cell = 0; cell < cells; cell++) {
+                if ((cell / stride) % steps < steps - 1 && cellShape[cell] == cellShape[cell + stride]) {
+                    union(parent, cell, cell + stride);
+                }
+            }
+        }
+
+        int[] cellRegion = new int[cells];
+        int[] regionOfRoot = new int[cells];
+        Arrays.fill(regionOfRoot, -1);
+        int regions = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            int root = find(parent, cell);
+            if (regionOfRoot[root] < 0) {
+                regionOfRoot[root] = regions++;
+            }
+            cellRegion[cell] = regionOfRoot[root];
+        }
+
+        int[] regionShape = new int[regions];
+        double[] regionRegret = new double[regions];
+        double[] cellRegret = new double[cells];
+        IntStream.range(0, cells).parallel().forEach(cell ->
+                cellRegret[cell] = regret(cell, steps, n, shapeMasks[cellShape[cell]], shapeFlags[cellShape[cell]],
+                        optimal, costModel));
+        for (int cell = 0; cell < cells; cell++) {
+            int region = cellRegion[cell];
+            regionShape[region] = cellShape[cell];
+            regionRegret[region] = Math.max(regionRegret[region], cellRegret[cell]);
+        }
+
+        return new PlanGrid(n, steps, costModel, shapeMasks, shapeFlags, regionShape, regionRegret, cellRegion);
+    }
+
+    private static Optimizer.SubSet optimize(double[] selectivities, CostModel costModel) {
+        return new Optimizer(selectivities, costModel, Optimizer.Enumeration.SUBMASKS).optimize();
+    }
+
+    /**
+     * @return The selectivities at a point of a grid with 'size' points per term, offset by 'offset' steps.
+     */
+    private static double[] coordinates(int index, int size, int n, double offset, int steps) {
+        double[] selectivities = new double[n];
+        for (int i = 0; i < n; i++, index /= size) {
+            selectivities[i] = (index % size + offset) / steps;
+        }
+        return selectivities;
+    }
+
+    /**
+     * Appends the nodes of a plan in preorder. Whether a leaf is a no-branch term only shows in the code for the root
+     * and right children, and SIMD only for the root, so other nodes do not record them and do not split shapes.
+     */
+    private static void encode(Optimizer.SubSet node, boolean right, List<Optimizer.SubSet> nodes, List<Byte> flags) {
+        boolean leaf = node.L == null && node.R == null;
+        nodes.add(node);
+        flags.add((byte) ((leaf ? LEAF : 0)
+                | (leaf && right && node.b ? NO_BRANCH : 0)
+                | (leaf && node.simd ? SIMD : 0)));
+        if (!leaf) {
+            encode(node.L, false, nodes, flags);
+            encode(node.R, true, nodes, flags);
+        }
+    }
+
+    /**
+     * @return The largest amount by which a shape costs more than the optimal plan at the corners of a cell.
+     */
+    private static double regret(int cell, int steps, int n, int[] masks, byte[] flags, double[] optimal,
+                                 CostModel costModel) {
+        int[] lower = new int[n];
+        for (int i = 0, index = cell; i < n; i++, index /= steps) {
+            lower[i] = index % steps;
+        }
+        double regret = 0.0;
+        double[] selectivities = new double[n];
+        for (int corner = 0; corner < 1 << n; corner++) {
+            int vertex = 0;
+            for (int i = n - 1; i >= 0; i--) {
+                int coordinate = lower[i] + (corner >> i & 1);
+                selectivities[i] = (double) coordinate / steps;
+                vertex = vertex * (steps + 1) + coordinate;
+            }
+            double cost = rebuild(masks, flags, new int[1], selectivities, costModel).c;
+            regret = Math.max(regret, cost - optimal[vertex]);
+        }
+        return regret;
+    }
+
+    /**
+     * Rebuilds the plan tree of a shape and prices it at the given selectivities, as algorithm 4.11 would.
+     */
+    private static Optimizer.SubSet rebuild(int[] masks, byte[] flags, int[] next, double[] selectivities,
+                                            CostModel costModel) {
+        int node = next[0]++;
+        Optimizer.SubSet subSet = new Optimizer.SubSet();
+        subSet.mask = masks[node];
+        subSet.k = Integer.bitCount(masks[node]);
+        subSet.p = 1.0;
+        for (int bits = masks[node]; bits != 0; bits &= bits - 1) {
+            // in index order, as generateSubSets multiplies them
+            subSet.p *= selectivities[Integer.numberOfTrailingZeros(bits)];
+        }
+        subSet.costModel = costModel;
+        subSet.b = (flags[node] & NO_BRANCH) != 0;
+        subSet.simd = (flags[node] & SIMD) != 0;
+
+        if ((flags[node] & LEAF) != 0) {
+            subSet.c = subSet.simd ? subSet.vectorCost() : subSet.b ? subSet.noBranchCost() : subSet.logicalAndCost();
+        } else {
+            subSet.L = rebuild(masks, flags, next, selectivities, costModel);
+            subSet.R = rebuild(masks, flags, next, selectivities, costModel);
+            subSet.c = Optimizer.SubSet.combinedCost(subSet.L, subSet.R);
+        }
+        return subSet;
+    }
+
+    private static int find(int[] parent, int cell) {
+        while (parent[cell] != cell) {
+            parent[cell] = parent[parent[cell]];
+            cell = parent[cell];
+        }
+        return cell;
+    }
+
+    private static void union(int[] parent, int one, int two) {
+        int rootOne = find(parent, one);
+        int rootTwo = find(parent, two);
+        if (rootOne != rootTwo) {
+            parent[Math.max(rootOne, rootTwo)] = Math.min(rootOne, rootTwo);
+        }
+    }
+
+    /**
+     * Finds the precomputed plan for a query. Selectivities outside [0, 1] are taken as the nearest bound.
+     *
+     * @param selectivities The selectivity of each term.
+     * @return The plan of the query's region and the regret measured at the grid vertices of that region, which does
+     * not bound the regret of a query between them.
+     */
+    public Entry lookup(double[] selectivities) {
+        if (selectivities.length != n) {
+            throw new IllegalArgumentException("This grid plans " + n + " terms, got " + selectivities.length);
+        }
+        int cell = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            cell = cell * steps + Math.max(0, Math.min(steps - 1, (int) (selectivities[i] * steps)));
+        }
+        int region = cellRegion[cell];
+        int shape = regionShape[region];
+        Optimizer.SubSet root = rebuild(shapeMasks[shape], shapeFlags[shape], new int[1], selectivities, costModel);
+        return new Entry(new Plan(root, selectivities, null), regionRegret[region]);
+    }
+
+    public int terms() {
+        return n;
+    }
+
+    public int steps() {
+        return steps;
+    }
+
+    public CostModel costModel() {
+        return costModel;
+    }
+
+    public int cells() {
+        return cellRegion.length;
+    }
+
+    public int regions() {
+        return regionShape.length;
+    }
+
+    /**
+     * @return The number of distinct plan shapes; a shape can cover several regions that do not touch.
+     */
+    public int shapes() {
+        return shapeMasks.length;
+    }
+
+    /**
+     * @return The largest regret measured at the grid vertices of any region.
+     */
+    public double regret() {
+        double regret = 0.0;
+        for (double r : regionRegret) {
+            regret = Math.max(regret, r);
+        }
+        return regret;
+    }
+
+    @Override
+    public String toString() {
+        return "plan grid: " + n + " terms, " + steps + " steps, " + cells() + " cells, " + regions() + " regions, "
+                + shapes() + " shapes, regret at vertices up to " + regret();
+    }
+
+    /**
+     * Writes the grid to a file. Plan shapes are written once, and the region of each cell as runs of equal regions.
+     *
+     * @param file The file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(n);
+            out.writeInt(steps);
+            for (double constant : new double[]{costModel.a, costModel.f, costModel.l, costModel.m, costModel.r,
+                    costModel.t, costModel.v}) {
+                out.writeDouble(constant);
+            }
+
+            out.writeInt(shapeMasks.length);
+            for (int shape = 0; shape < shapeMasks.length; shape++) {
+                out.writeInt(shapeMasks[shape].length);
+                for (int node = 0; node < shapeMasks[shape].length; node++) {
+                    out.writeInt(shapeMasks[shape][node]);
+                    out.writeByte(shapeFlags[shape][node]);
+                }
+            }
+
+            out.writeInt(regionShape.length);
+            for (int region = 0; region < regionShape.length; region++) {
+                out.writeInt(regionShape[region]);
+                out.writeDouble(regionRegret[region]);
+            }
+
+            for (int cell = 0; cell < cellRegion.length; ) {
+                int run = 1;
+                while (cell + run < cellRegion.length && cellRegion[cell + run] == cellRegion[cell]) {
+                    run++;
+                }
+                out.writeInt(run);
+                out.writeInt(cellRegion[cell]);
+                cell += run;
+            }
+        }
+    }
+
+    /**
+     * Reads a grid written by {@link #save(Path)}.
+     *
+     * @param file The file to read.
+     * @return The grid.
+     * @throws IOException if the file cannot be read or was not written by this class.
+     */
+    public static PlanGrid load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a plan grid file: " + file);
+            }
+            int n = in.readInt();
+            int steps = in.readInt();
+            CostModel costModel = new CostModel(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+                    in.readDouble(), in.readDouble(), in.readDouble());
+
+            int[][] shapeMasks = new int[in.readInt()][];
+            byte[][] shapeFlags = new byte[shapeMasks.length][];
+            for (int shape = 0; shape < shapeMasks.length; shape++) {
+                shapeMasks[shape] = new int[in.readInt()];
+                shapeFlags[shape] = new byte[shapeMasks[shape].length];
+                for (int node = 0; node < shapeMasks[shape].length; node++) {
+                    shapeMasks[shape][node] = in.readInt();
+                    shapeFlags[shape][node] = in.readByte();
+                }
+            }
+
+            int[] regionShape = new int[in.readInt()];
+            double[] regionRegret = new double[regionShape.length];
+            for (int region = 0; region < regionShape.length; region++) {
+                regionShape[region] = in.readInt();
+                regionRegret[region] = in.readDouble();
+            }
+
+            int[] cellRegion = new int[(int) Math.round(Math.pow(steps, n))];
+            for (int cell = 0; cell < cellRegion.length; ) {
+                int run = in.readInt();
+                Arrays.fill(cellRegion, cell, cell + run, in.readInt());
+                cell += run;
+            }
+            return new PlanGrid(n, steps, costModel, shapeMasks, shapeFlags, regionShape, regionRegret, cellRegion);
+        }
+    }
+
+    /**
+     * Usage: PlanGrid config-file terms steps grid-file
+     */
+    public static void main(String[] args) throws IOException {
+        Properties config = new Properties();
+        config.load(new FileInputStream(args[0]));
+        int n = Integer.parseInt(args[1]);
+        int steps = Integer.parseInt(args[2]);
+        Path file = Paths.get(args[3]);
+
+        PlanGrid grid = build(n, steps, Optimizer.parseCostModel(config));
+        grid.save(file);
+        System.out.println(grid);
+        System.out.println(Files.size(file) + " bytes written to " + file);
+    }
+}
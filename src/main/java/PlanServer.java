@@ -0,0 +1,293 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves plans over HTTP on the loopback interface, so a query engine can ask for plans without starting a JVM, and
+ * warming up its JIT, for every query.
+ *
+ * <pre>
+ * POST /plan[?format=json][&amp;m=20...]   one query per line, as in a query file
+ * GET  /stats                             request and query counts, throughput and latency percentiles
+ * </pre>
+ *
+ * Plans come back as text, exactly as {@link Main} prints them, or as a JSON array with one object per query. Query
+ * parameters named after a constant of the cost model override the configuration for that request only. Every query
+ * of every request becomes one task on a single pool of optimizer threads, so concurrent requests are batched onto
+ * the same threads instead of each optimizing on its own.
+ */
+public class PlanServer {
+
+    /**
+     * Port used when none is given.
+     */
+    static final int PORT = 8417;
+
+    /**
+     * Number of most recent request latencies the percentiles are computed from.
+     */
+    static final int LATENCY_SAMPLES = 4096;
+
+    private static final String[] COST_KEYS = {"r", "t", "l", "m", "a", "f", "v"};
+
+    private final Properties config;
+    private final int exactTerms;
+    private final HttpServer server;
+    private final ExecutorService optimizers;
+    private final ExecutorService handlers;     // Parses requests and waits for their plans.
+
+    private final long started = System.nanoTime();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final long[] latencies = new long[LATENCY_SAMPLES]; // Ring of the latest request latencies, in ns.
+    private long latencyCount;                                  // Latencies recorded so far; guarded by latencies.
+
+    /**
+     * @param config The configuration, as in config.txt.
+     * @param port The port to listen on, or 0 for any free port.
+     * @param threads The number of optimizer threads shared by all requests.
+     * @throws IOException if the port cannot be bound.
+     */
+    public PlanServer(Properties config, int port, int threads) throws IOException {
+        this.config = config;
+        this.exactTerms = Integer.parseInt(config.getProperty("exact.terms", String.valueOf(Main.EXACT_TERMS)));
+        this.optimizers = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.handlers = Executors.newCachedThreadPool();
+        this.server.setExecutor(handlers);
+        this.server.createContext("/plan", this::plan);
+        this.server.createContext("/stats", this::stats);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdown();
+        optimizers.shutdown();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void plan(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        requests.increment();
+        List<Future<Plan>> plans = new ArrayList<>();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "text/plain", "POST one query per line\n");
+                return;
+            }
+            Map<String, String> parameters = parameters(exchange.getRequestURI());
+            CostModel costModel = costModel(parameters);
+            boolean json = "json".equals(parameters.get("format"));
+
+            List<String> batch = new ArrayList<>();
+            for (String line : new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8).split("\n")) {
+                if (Main.parseLine(line).length > 0) {
+                    batch.add(line);
+                }
+            }
+
+            for (String line : batch) {
+                double[] selectivities = Main.parseLine(line);
+                double[] costs = Main.parseCosts(line, costModel);
+                Callable<Plan> task = () -> Main.plan(selectivities, costs, costModel, exactTerms);
+                plans.add(optimizers.submit(task));
+            }
+
+            StringBuilder sb = new StringBuilder(json ? "[" : "");
+            for (int i = 0; i < batch.size(); i++) {
+                Plan plan = plans.get(i).get();
+                if (json) {
+                    sb.append(i > 0 ? ",\n" : "\n").append(json(plan));
+                } else {
+                    sb.append(plan).append("\n");
+                }
+            }
+            sb.append(json ? "\n]\n" : "");
+            queries.add(batch.size());
+            respond(exchange, 200, json ? "application/json" : "text/plain", sb.toString());
+        } catch (IllegalArgumentException e) {
+            // also NumberFormatException, for a selectivity or cost that is not a number
+            errors.increment();
+            respond(exchange, 400, "text/plain", e.getMessage() + "\n");
+        } catch (ExecutionException e) {
+            // a query the optimizer rejects, such as one with too many terms, is the client's error too
+            errors.increment();
+            if (e.getCause() instanceof IllegalArgumentException) {
+                respond(exchange, 400, "text/plain", e.getCause().getMessage() + "\n");
+            } else {
+                respond(exchange, 500, "text/plain", e.getCause() + "\n");
+            }
+        } catch (InterruptedException e) {
+            errors.increment();
+            respond(exchange, 500, "text/plain", e + "\n");
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            errors.increment();
+            respond(exchange, 500, "text/plain", e + "\n");
+        } finally {
+            // the other queries of a failed request are not waited for: free their optimizer threads
+            for (Future<Plan> plan : plans) {
+                plan.cancel(true);
+            }
+            record(System.nanoTime() - start);
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "application/json", stats());
+    }
+
+    /**
+     * @return The counters and latency percentiles of the server as a JSON object.
+     */
+    String stats() {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+        }
+        Arrays.sort(sorted);
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        return "{\"requests\": " + requests.sum()
+                + ", \"queries\": " + queries.sum()
+                + ", \"errors\": " + errors.sum()
+                + ", \"uptimeSeconds\": " + seconds
+                + ", \"queriesPerSecond\": " + queries.sum() / seconds
+                + ", \"latencyMicros\": {\"p50\": " + percentile(sorted, 50)
+                + ", \"p90\": " + percentile(sorted, 90)
+                + ", \"p99\": " + percentile(sorted, 99)
+                + ", \"max\": " + percentile(sorted, 100) + "}}\n";
+    }
+
+    private void record(long nanos) {
+        synchronized (latencies) {
+            latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = nanos;
+        }
+    }
+
+    /**
+     * @return The nearest-rank percentile of sorted latencies, in microseconds, or 0 if there are none.
+     */
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1000;
+    }
+
+    /**
+     * @return The configured cost model with every constant given as a parameter replaced.
+     */
+    private CostModel costModel(Map<String, String> parameters) {
+        Properties costs = new Properties();
+        costs.putAll(config);
+        for (String key : COST_KEYS) {
+            if (parameters.containsKey(key)) {
+                costs.setProperty(key, parameters.get(key));
+            }
+        }
+        return Optimizer.parseCostModel(costs);
+    }
+
+    /**
+     * Renders a plan as a JSON object. Term indices are 0-based positions in the query, unlike in the C code.
+     */
+    static String json(Plan plan) {
+        StringBuilder groups = new StringBuilder("[");
+        for (int[] group : plan.conditions()) {
+            groups.append(groups.length() > 1 ? ", " : "").append(Arrays.toString(group));
+        }
+        groups.append("]");
+
+        return "{\"selectivities\": " + Arrays.toString(plan.selectivities())
+                + ", \"cost\": " + plan.cost()
+                + ", \"groups\": " + groups
+                + ", \"noBranch\": " + (plan.tail() == null ? "null" : Arrays.toString(plan.tail()))
+                + ", \"simd\": " + plan.simd()
+                + ", \"code\": \"" + escape(plan.toC()) + "\"}";
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\t", "\\t");
+    }
+
+    private static Map<String, String> parameters(URI uri) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String pair : uri.getRawQuery().split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Usage: PlanServer config-file [port [threads]]
+     */
+    public static void main(String[] args) throws IOException {
+        Properties config = new Properties();
+        config.load(new FileInputStream(args[0]));
+        int port    = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        PlanServer server = new PlanServer(config, port, threads);
+        server.start();
+        System.err.println("serving plans on http://localhost:" + server.port() + "/plan");
+    }
+}
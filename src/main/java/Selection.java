@@ -0,0 +1,16 @@
+/**
+ * A selection plan that can be run over columnar data.
+ */
+public interface Selection {
+
+    /**
+     * Runs the plan over the first 'rows' rows.
+     *
+     * @param t t[i][v] is the result of the function of term i applied to v.
+     * @param o o[i][row] is the value term i reads for a row.
+     * @param rows The number of rows to scan.
+     * @param answer Receives the indices of the matching rows; must hold at least 'rows' elements.
+     * @return The number of matching rows.
+     */
+    int run(boolean[][] t, int[][] o, int rows, int[] answer);
+}
@@ -0,0 +1,162 @@
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.*;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveExecutorTest {
+
+    private static final int ROWS = 1 << 16;
+
+    private static boolean[][] tables(double[] selectivities) {
+        boolean[][] t = new boolean[selectivities.length][];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = PlanExecutor.table(selectivities[i]);
+        }
+        return t;
+    }
+
+    private static int[][] columns(int n, Random random) {
+        int[][] o = new int[n][];
+        for (int i = 0; i < n; i++) {
+            o[i] = PlanExecutor.column(ROWS, random);
+        }
+        return o;
+    }
+
+    /**
+     * Runs every re-plan on the scanning thread as soon as it is asked for, so a scan sees the same swaps every time.
+     */
+    private static ExecutorService sameThread() {
+        return new AbstractExecutorService() {
+            private volatile boolean shutdown;
+
+            @Override
+            public void execute(Runnable command) {
+                if (shutdown) {
+                    throw new RejectedExecutionException();
+                }
+                command.run();
+            }
+
+            @Override
+            public void shutdown() {
+                shutdown = true;
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                shutdown = true;
+                return Collections.emptyList();
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return shutdown;
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return shutdown;
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) {
+                return true;
+            }
+        };
+    }
+
+    private static int[] run(Selection selection, boolean[][] t, int[][] o) {
+        int[] answer = new int[ROWS];
+        return Arrays.copyOf(answer, selection.run(t, o, ROWS, answer));
+    }
+
+    @Test
+    public void testDriftSwapsInTheOptimalPlan() throws Exception {
+        double[] estimated = {0.9, 0.1, 0.5, 0.6};
+        double[] actual = {0.1, 0.9, 0.5, 0.6};
+        boolean[][] t = tables(actual);
+        int[][] o = columns(actual.length, new Random(41));
+        int[] expected = run(new PlanExecutor(Main.plan(actual, null, Fixtures.COSTS, Main.EXACT_TERMS)), t, o);
+
+        AdaptiveExecutor adaptive = new AdaptiveExecutor(estimated, null, Fixtures.COSTS, Main.EXACT_TERMS, 0.5, 0.05, sameThread());
+        Plan initial = adaptive.plan();
+        assertThat(initial.group(0), is(new int[]{1}));  // term 1 is believed to pass rarely, but passes mostly
+
+        // rows keep being answered correctly while the plan is replaced underneath
+        assertThat(run(adaptive, t, o), is(expected));
+        assertThat(run(adaptive, t, o), is(expected));
+
+        assertThat(adaptive.replans(), greaterThanOrEqualTo(1L));
+        assertThat(adaptive.swaps(), greaterThanOrEqualTo(1L));
+        assertThat(adaptive.improvement(), greaterThan(0.0));
+        assertThat(adaptive.plan().group(0), is(new int[]{0}));
+        assertThat(adaptive.rows(), is(2L * ROWS));
+        assertThat(adaptive.sampled(), is(2L * ROWS / AdaptiveExecutor.SAMPLE_EVERY));
+
+        double[] estimates = adaptive.estimates();
+        for (int i = 0; i < actual.length; i++) {
+            assertThat(estimates[i], closeTo(actual[i], 0.05));
+        }
+        assertThat(adaptive.drift(), lessThan(0.1));
+        assertThat(adaptive.branchRates()[0], closeTo(0.1, 0.05));
+    }
+
+    /**
+     * The same drift as above, but the first term is expensive: the re-plans keep its cost, so it is not moved first
+     * even though it now passes rarely.
+     */
+    @Test
+    public void testReplansKeepTermCosts() throws Exception {
+        double[] estimated = {0.9, 0.1, 0.5, 0.6};
+        double[] actual = {0.1, 0.9, 0.5, 0.6};
+        double[] costs = {40, 4, 4, 4};
+        boolean[][] t = tables(actual);
+        int[][] o = columns(actual.length, new Random(41));
+        int[] expected = run(new PlanExecutor(Main.plan(actual, costs, Fixtures.COSTS, Main.EXACT_TERMS)), t, o);
+
+        AdaptiveExecutor adaptive = new AdaptiveExecutor(estimated, costs, Fixtures.COSTS, Main.EXACT_TERMS, 0.5, 0.05, sameThread());
+        assertEquals(Main.plan(estimated, costs, Fixtures.COSTS, Main.EXACT_TERMS).toString(), adaptive.plan().toString());
+
+        assertThat(run(adaptive, t, o), is(expected));
+        assertThat(run(adaptive, t, o), is(expected));
+
+        assertThat(adaptive.swaps(), greaterThanOrEqualTo(1L));
+        assertThat(adaptive.plan().group(0), is(new int[]{2, 3}));
+        assertThat(adaptive.plan().toC(), is(Main.plan(actual, costs, Fixtures.COSTS, Main.EXACT_TERMS).toC()));
+    }
+
+    @Test
+    public void testNoReplanWithoutDrift() throws Exception {
+        double[] selectivities = {0.3, 0.8, 0.5};
+        boolean[][] t = tables(selectivities);
+        int[][] o = columns(selectivities.length, new Random(43));
+
+        AdaptiveExecutor adaptive = new AdaptiveExecutor(selectivities, null, Fixtures.COSTS, Main.EXACT_TERMS, 0.1, 0.25, sameThread());
+        String plan = adaptive.plan().toString();
+        int[] expected = run(new PlanExecutor(adaptive.plan()), t, o);
+        for (int scan = 0; scan < 4; scan++) {
+            assertThat(run(adaptive, t, o), is(expected));
+        }
+
+        assertThat(adaptive.replans(), is(0L));
+        assertThat(adaptive.swaps(), is(0L));
+        assertEquals(plan, adaptive.plan().toString());
+        assertThat(adaptive.toString(), containsString("0 replans"));
+    }
+
+    @Test
+    public void testCostAtPlannedSelectivities() throws Exception {
+        double[] selectivities = {0.7, 0.4, 0.2, 0.3, 0.6};
+        Plan plan = Main.plan(selectivities, null, Fixtures.COSTS, Main.EXACT_TERMS);
+        assertThat(plan.costAt(selectivities), closeTo(plan.cost(), 1e-9));
+        assertThat(plan.costAt(new double[]{0.7, 0.4, 0.9, 0.3, 0.6}), greaterThan(plan.cost()));
+    }
+}
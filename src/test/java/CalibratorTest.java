@@ -0,0 +1,57 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.FileInputStream;
+import java.nio.file.Path;
+import java.util.Properties;
+
+public class CalibratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStatistics() throws Exception {
+        double[] samples = {1.0, 2.0, 3.0, 4.0, 5.0};
+        assertThat(Calibrator.mean(samples), is(3.0));
+        assertThat(Calibrator.confidence(samples), closeTo(1.96 * Math.sqrt(2.5) / Math.sqrt(5), 1e-12));
+        assertThat(Calibrator.confidence(new double[]{2.0, 2.0, 2.0}), is(0.0));
+    }
+
+    @Test
+    public void testConstantsFromLoopTimes() throws Exception {
+        // loop overhead and constants that are exact in binary, so the arithmetic must recover them exactly
+        double loop = 0.75, r = 0.5, t = 1.25, l = 0.25, m = 8.0, a = 1.5, f = 2.0;
+        double[] constants = Calibrator.constants(
+                loop + r,
+                loop + 2 * r,
+                loop + r + f,
+                loop + 2 * r + 2 * f + l,
+                loop + r + a,
+                loop + r + f + t + a / 2,
+                loop + r + f + t + a / 2 + m / 2);
+        assertThat(constants, is(new double[]{r, t, l, m, a, f}));
+    }
+
+    @Test
+    public void testCalibratedFileLoadsAsCostModel() throws Exception {
+        Path file = folder.newFile("calibrated.txt").toPath();
+        double[][] samples = new Calibrator(1 << 12, 3).measure();
+        assertThat(samples.length, is(Calibrator.NAMES.length));
+        assertThat(samples[0].length, is(3));
+
+        Calibrator.write(samples, file);
+        Properties props = new Properties();
+        try (FileInputStream in = new FileInputStream(file.toFile())) {
+            props.load(in);
+        }
+        for (String name : Calibrator.NAMES) {
+            assertThat(Double.valueOf(props.getProperty(name)), greaterThanOrEqualTo(Calibrator.MIN_COST));
+        }
+        assertThat(Optimizer.parseCostModel(props), is(notNullValue()));
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * The cost model the tests optimize with, and the harness of the tests that run a main class in a JVM of its own.
+ */
+final class Fixtures {
+
+    /**
+     * The constants of config.txt, one per line.
+     */
+    private static final List<String> CONFIG = Arrays.asList("r = 1", "t = 2", "l = 1", "m = 16", "a = 2", "f = 4");
+
+    /**
+     * The cost model of {@link #CONFIG}.
+     */
+    static final CostModel COSTS = Optimizer.parseCostModel(properties());
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return The constants of {@link #COSTS} as a configuration.
+     */
+    static Properties properties() {
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(String.join("\n", CONFIG)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return properties;
+    }
+
+    /**
+     * @return A new config.txt in the folder with the constants of {@link #COSTS}.
+     */
+    static Path config(TemporaryFolder folder) throws IOException {
+        Path config = folder.newFile("config.txt").toPath();
+        Files.write(config, CONFIG, StandardCharsets.UTF_8);
+        return config;
+    }
+
+    /**
+     * @param arguments JVM options, then the main class and its arguments.
+     * @return A process builder for a JVM with the class path of the tests.
+     */
+    static ProcessBuilder java(List<String> arguments) {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path")));
+        command.addAll(arguments);
+        return new ProcessBuilder(command);
+    }
+
+    static ProcessBuilder java(String... arguments) {
+        return java(Arrays.asList(arguments));
+    }
+
+    /**
+     * @return Everything the process writes to its output, once it closes it.
+     */
+    static String output(Process process) {
+        Scanner scanner = new Scanner(process.getInputStream(), "UTF-8").useDelimiter("\\A");
+        return scanner.hasNext() ? scanner.next() : "";
+    }
+}
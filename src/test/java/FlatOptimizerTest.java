@@ -0,0 +1,128 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+public class FlatOptimizerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSamePlansAsObjectTable() throws Exception {
+        Random random = new Random(13);
+        for (int query = 0; query < 100; query++) {
+            double[] selectivities = new double[1 + random.nextInt(10)];
+            for (int i = 0; i < selectivities.length; i++) {
+                // coarse values so that ties between candidate plans actually happen
+                selectivities[i] = query % 2 == 0
+                        ? (1 + random.nextInt(4)) / 4.0
+                        : Math.round(random.nextDouble() * 100) / 100.0;
+            }
+            String expected = new Optimizer(selectivities, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).call().toString();
+            assertEquals(expected, new FlatOptimizer(selectivities, Fixtures.COSTS).call().toString());
+        }
+    }
+
+    @Test
+    public void testParallelWavesSamePlans() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Random random = new Random(17);
+        for (int query = 0; query < 100; query++) {
+            double[] selectivities = new double[1 + random.nextInt(12)];
+            double[] costs = query % 3 == 0 ? new double[selectivities.length] : null;
+            for (int i = 0; i < selectivities.length; i++) {
+                selectivities[i] = query % 2 == 0
+                        ? (1 + random.nextInt(4)) / 4.0
+                        : Math.round(random.nextDouble() * 100) / 100.0;
+                if (costs != null) {
+                    costs[i] = 1 + random.nextInt(3) * 4;
+                }
+            }
+            String expected = new Optimizer(selectivities, costs, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).call().toString();
+            assertEquals(expected, new FlatOptimizer(selectivities, costs, Fixtures.COSTS,
+                    Optimizer.Enumeration.PARALLEL_WAVES, pool).call().toString());
+        }
+        pool.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoAllPairs() throws Exception {
+        new FlatOptimizer(new double[]{0.5, 0.5}, null, Fixtures.COSTS, Optimizer.Enumeration.ALL_PAIRS);
+    }
+
+    @Test
+    public void testTableSize() throws Exception {
+        assertThat(FlatOptimizer.tableBytes(26), is(24L << 26));  // 1.5 GiB
+        assertThat(FlatOptimizer.tableBytes(28), is(6L << 30));   // 6 GiB
+    }
+
+    /**
+     * Builds the subset table of a query and prints how many heap bytes it takes per subset. Runs in a JVM of its own
+     * with the serial collector, which accounts for large arrays exactly.
+     */
+    public static class TableBytes {
+
+        static FlatOptimizer table;     // Keeps the table reachable while the heap is measured.
+
+        public static void main(String[] args) {
+            int n = Integer.parseInt(args[0]);
+            double[] selectivities = new double[n];
+            Arrays.fill(selectivities, 0.5);
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+            System.gc();
+            long before = memory.getHeapMemoryUsage().getUsed();
+            table = new FlatOptimizer(selectivities, Fixtures.COSTS);
+            System.gc();
+            long after = memory.getHeapMemoryUsage().getUsed();
+            System.out.println((double) (after - before) / (1L << n));
+        }
+    }
+
+    /**
+     * Measures the table of a 22-term query, the smallest one Main gives to FlatOptimizer, against
+     * {@link FlatOptimizer#BYTES_PER_SUBSET}, which the sizes documented for 26 to 28 terms are computed from.
+     */
+    @Test
+    public void testMeasuredBytesPerSubset() throws Exception {
+        int n = Main.FLAT_TERMS;
+        Process process = Fixtures.java("-XX:+UseSerialGC", "-Xmx" + (FlatOptimizer.tableBytes(n) * 2 >> 20) + "m",
+                TableBytes.class.getName(), String.valueOf(n)).redirectErrorStream(true).start();
+        String output = Fixtures.output(process);
+        assertThat(output, process.waitFor(), is(0));
+        assertThat(FlatOptimizer.BYTES_PER_SUBSET, is(24));
+        assertThat(Double.parseDouble(output.trim()), closeTo(FlatOptimizer.BYTES_PER_SUBSET, 0.5));
+    }
+
+    /**
+     * Runs an 18-term optimization in a JVM whose heap only has room for the flat table and a little more.
+     */
+    @Test
+    public void testCompletesWithinFixedHeap() throws Exception {
+        int n = 18;
+        long heap = FlatOptimizer.tableBytes(n) + (16 << 20);
+
+        Path config = Fixtures.config(folder);
+        List<String> arguments = new ArrayList<>(Arrays.asList("-Xmx" + (heap >> 20) + "m", "FlatOptimizer", config.toString()));
+        Random random = new Random(n);
+        for (int i = 0; i < n; i++) {
+            arguments.add(String.valueOf(Math.round(random.nextDouble() * 100) / 100.0));
+        }
+
+        Process process = Fixtures.java(arguments).redirectErrorStream(true).start();
+        String output = Fixtures.output(process);
+        assertThat(output, process.waitFor(), is(0));
+        assertThat(output, containsString("t" + n + "[o" + n + "[i]]"));
+        assertThat(output, containsString("cost: "));
+    }
+}
@@ -0,0 +1,60 @@
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.*;
+
+public class HeuristicOptimizerTest {
+
+    @Test
+    public void testRankOrdersBySelectivityUnderUniformCosts() throws Exception {
+        HeuristicOptimizer optimizer = new HeuristicOptimizer(new double[]{0.7, 0.4, 0.2, 0.3, 0.6}, Fixtures.COSTS);
+        assertThat(optimizer.rank(), is(new int[]{2, 3, 1, 4, 0}));
+    }
+
+    @Test
+    public void testRankAccountsForTermCosts() throws Exception {
+        double[] selectivities = {0.7, 0.4, 0.2, 0.3, 0.6};
+        HeuristicOptimizer optimizer = new HeuristicOptimizer(selectivities, new double[]{2, 2, 80, 2, 2}, Fixtures.COSTS);
+        assertThat(optimizer.rank(), is(new int[]{3, 1, 4, 0, 2}));
+    }
+
+    @Test
+    public void testSamePlanFormatAsExact() throws Exception {
+        List<Double> selectivities = Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6);
+        String exact = new Optimizer(selectivities, Fixtures.COSTS).call().toString();
+        String heuristic = new HeuristicOptimizer(selectivities, Fixtures.COSTS).call().toString();
+        assertThat(heuristic, is(exact));
+    }
+
+    @Test
+    public void testCostCloseToExact() throws Exception {
+        Random random = new Random(17);
+        double worst = 0;
+        for (int query = 0; query < 200; query++) {
+            double[] selectivities = new double[1 + random.nextInt(10)];
+            for (int i = 0; i < selectivities.length; i++) {
+                selectivities[i] = Math.round(random.nextDouble() * 100) / 100.0;
+            }
+            double exact = new Optimizer(selectivities, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).optimize().c;
+            double heuristic = new HeuristicOptimizer(selectivities, Fixtures.COSTS).optimize().c;
+            worst = Math.max(worst, (heuristic - exact) / exact);
+        }
+        assertThat(worst, lessThan(0.05));
+    }
+
+    @Test
+    public void testPlansBeyondExactRange() throws Exception {
+        Random random = new Random(23);
+        double[] selectivities = new double[60];
+        for (int i = 0; i < selectivities.length; i++) {
+            selectivities[i] = Math.round(random.nextDouble() * 100) / 100.0;
+        }
+        String plan = new HeuristicOptimizer(selectivities, Fixtures.COSTS).call().toString();
+        for (int i = 1; i <= 60; i++) {
+            assertThat(plan, containsString("t" + i + "[o" + i + "[i]]"));
+        }
+        assertThat(plan, containsString("cost: "));
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class MainTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParseLine() throws Exception {
+        assertThat(Main.parseLine("0.7 0.4 0.2"), is(new double[]{0.7, 0.4, 0.2}));
+        assertThat(Main.parseLine("  0.5\t0.5  "), is(new double[]{0.5, 0.5}));
+        assertThat(Main.parseLine("   ").length, is(0));
+    }
+
+    @Test
+    public void testParseCosts() throws Exception {
+        CostModel costModel = new CostModel(2, 4, 1, 16, 1, 3);
+        assertThat(Main.parseCosts("0.7 0.4 0.2", costModel), is(nullValue()));
+        assertThat(Main.parseLine("0.7:12 0.4 0.2:1:5"), is(new double[]{0.7, 0.4, 0.2}));
+        // a term without costs costs f = 4; an access cost of 5 instead of r = 1 adds 4
+        assertThat(Main.parseCosts("0.7:12 0.4 0.2:1:5", costModel), is(new double[]{12, 4, 5}));
+    }
+
+    @Test
+    public void testStreamedPlansKeepInputOrder() throws Exception {
+        Random random = new Random(5);
+        List<String> lines = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        CostModel costModel = Fixtures.COSTS;
+        for (int i = 0; i < 100; i++) {
+            List<Double> selectivities = new ArrayList<>();
+            for (int j = 1 + random.nextInt(8); j > 0; j--) {
+                selectivities.add(Math.round(random.nextDouble() * 100) / 100.0);
+            }
+            lines.add(selectivities.stream().map(Object::toString).reduce((a, b) -> a + " " + b).get());
+            expected.append(new Optimizer(selectivities, costModel).call()).append(System.lineSeparator());
+            if (i % 10 == 0) {
+                lines.add("");
+            }
+        }
+
+        Path queries = folder.newFile("query.txt").toPath();
+        Path config = Fixtures.config(folder);
+        Files.write(queries, lines, StandardCharsets.UTF_8);
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, "UTF-8"));
+        try {
+            Main.main(new String[]{queries.toString(), config.toString(), "4"});
+        } finally {
+            System.setOut(out);
+        }
+        assertEquals(expected.toString(), captured.toString("UTF-8"));
+    }
+
+    /**
+     * A line that cannot be parsed ends the run with an error, after the plans read before it, instead of leaving the
+     * JVM running on the optimizer threads.
+     */
+    @Test
+    public void testBadLineExits() throws Exception {
+        Path queries = folder.newFile("query.txt").toPath();
+        Path config = Fixtures.config(folder);
+        Files.write(queries, Arrays.asList("0.5 0.3", "abc", "0.2 0.4"), StandardCharsets.UTF_8);
+
+        Process process = Fixtures.java("Main", queries.toString(), config.toString(), "2").redirectErrorStream(true).start();
+        String output = Fixtures.output(process);
+        assertThat(output, process.waitFor(30, TimeUnit.SECONDS), is(true));
+        assertThat(output, process.exitValue(), is(1));
+        assertThat(output, startsWith(new Optimizer(new double[]{0.5, 0.3}, Fixtures.COSTS,
+                Optimizer.Enumeration.SUBMASKS).call().toString()));
+        assertThat(output, containsString("NumberFormatException"));
+        assertThat(output, not(containsString("0.2 0.4")));
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.*;
+
+public class MultisetOptimizerTest {
+
+    @Test
+    public void testClasses() throws Exception {
+        double[] selectivities = {0.8, 0.8, 0.9, 0.7, 0.7, 0.7};
+        assertThat(MultisetOptimizer.classes(selectivities, null),
+                is(new int[][]{{0, 1}, {2}, {3, 4, 5}}));
+        assertThat(MultisetOptimizer.states(selectivities, null), is(3L * 2 * 4));
+
+        // equal selectivities with different costs are not interchangeable
+        double[] costs = {2, 9, 2, 2, 2, 2};
+        assertThat(MultisetOptimizer.classes(selectivities, costs), is(new int[][]{{0}, {1}, {2}, {3, 4, 5}}));
+        assertThat(MultisetOptimizer.states(new double[]{0.1, 0.2, 0.3}, null), is(8L));
+    }
+
+    @Test
+    public void testSameCostAsFullSearch() throws Exception {
+        Random random = new Random(47);
+        for (int query = 0; query < 200; query++) {
+            double[] selectivities = new double[1 + random.nextInt(10)];
+            double[] costs = query % 2 == 0 ? null : new double[selectivities.length];
+            for (int i = 0; i < selectivities.length; i++) {
+                // few distinct values, so that most queries repeat some
+                selectivities[i] = (1 + random.nextInt(4)) / 5.0;
+                if (costs != null) {
+                    costs[i] = 1 + random.nextInt(2) * 8;
+                }
+            }
+            Plan full = new Optimizer(selectivities, costs, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).call();
+            Plan multiset = new MultisetOptimizer(selectivities, costs, Fixtures.COSTS).call();
+            assertThat(multiset.cost(), closeTo(full.cost(), 1e-9 * full.cost()));
+
+            // every term exactly once, and the plan priced as it is printed
+            int[] order = multiset.order();
+            Arrays.sort(order);
+            for (int i = 0; i < order.length; i++) {
+                assertThat(order[i], is(i));
+            }
+            assertThat(multiset.costAt(selectivities), closeTo(multiset.cost(), 1e-9 * multiset.cost()));
+        }
+    }
+
+    @Test
+    public void testRepeatedTermsShrinkTheSearch() throws Exception {
+        double[] selectivities = {0.5, 0.5, 0.5, 0.5};
+        MultisetOptimizer multiset = new MultisetOptimizer(selectivities, Fixtures.COSTS);
+        Optimizer full = new Optimizer(selectivities, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertEquals(full.call().toString(), multiset.call().toString());
+        assertThat(multiset.pairCount(), is(6L));
+        assertThat(full.pairCount(), is(50L));
+
+        // far past the exact range: 40 terms in 4 classes are 11^4 states
+        double[] many = new double[40];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = (1 + i % 4) / 5.0;
+        }
+        Plan plan = new MultisetOptimizer(many, Fixtures.COSTS).call();
+        assertThat(plan.cost(), lessThanOrEqualTo(new HeuristicOptimizer(many, Fixtures.COSTS).call().cost() + 1e-9));
+    }
+
+    @Test
+    public void testVectorCostAppliesToWholeQuery() throws Exception {
+        CostModel fast = new CostModel(2, 4, 1, 16, 1, 2, 0.5);
+        double[] selectivities = {0.7, 0.7, 0.2, 0.2, 0.6};
+        assertEquals(new Optimizer(selectivities, fast, Optimizer.Enumeration.SUBMASKS).call().toString(),
+                new MultisetOptimizer(selectivities, fast).call().toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyStates() throws Exception {
+        double[] selectivities = new double[40];
+        for (int i = 0; i < selectivities.length; i++) {
+            selectivities[i] = i / 40.0;
+        }
+        new MultisetOptimizer(selectivities, Fixtures.COSTS);
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class OptimizerMetricsTest {
+
+    private static final Pattern COUNTS = Pattern.compile(
+            "pairs: (\\d+), lemma48: (\\d+), lemma49: (\\d+), improvements: (\\d+)\nns: generate \\d+, initialize \\d+, optimize \\d+\n");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTotals() throws Exception {
+        OptimizerMetrics metrics = new OptimizerMetrics();
+        OptimizerMetrics.Run run = new OptimizerMetrics.Run();
+        run.pairs = 50;
+        run.lemma48Prunes = 20;
+        run.lemma49Prunes = 5;
+        run.improvements = 3;
+        run.optimizeNanos = 1000;
+        run.generateNanos = 300;
+        run.initializeNanos = 200;
+        metrics.add(run);
+        metrics.add(run);
+
+        assertThat(metrics.getOptimizations(), is(2L));
+        assertThat(metrics.getPairs(), is(100L));
+        assertThat(metrics.getLemma48Prunes(), is(40L));
+        assertThat(metrics.getLemma49Prunes(), is(10L));
+        assertThat(metrics.getImprovements(), is(6L));
+        assertThat(metrics.getOptimizeNanos(), is(2000L));
+
+        // a reoptimization reuses the subset table: its setup is not added again
+        metrics.addReoptimization(run);
+        assertThat(metrics.getOptimizations(), is(2L));
+        assertThat(metrics.getReoptimizations(), is(1L));
+        assertThat(metrics.getPairs(), is(150L));
+        assertThat(metrics.getImprovements(), is(9L));
+        assertThat(metrics.getGenerateNanos(), is(600L));
+        assertThat(metrics.getInitializeNanos(), is(400L));
+        assertThat(metrics.getOptimizeNanos(), is(3000L));
+
+        metrics.reset();
+        assertThat(metrics.getOptimizations(), is(0L));
+        assertThat(metrics.getReoptimizations(), is(0L));
+        assertThat(metrics.getPairs(), is(0L));
+    }
+
+    @Test
+    public void testOffByDefault() throws Exception {
+        assertThat(OptimizerMetrics.ENABLED, is(false));
+        double[] selectivities = {0.7, 0.4, 0.2};
+        String plan = new Optimizer(selectivities, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).call().toString();
+        assertThat(plan, endsWith("\n"));
+        assertThat(COUNTS.matcher(plan).find(), is(false));
+    }
+
+    /**
+     * Runs Main with metrics dumped, in its own JVM since the switch is read once per JVM, and checks the counts of
+     * both the sequential and the parallel enumeration against the plans printed without metrics.
+     */
+    @Test
+    public void testDumpedAfterCost() throws Exception {
+        Random random = new Random(13);
+        List<String> lines = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        CostModel costModel = Fixtures.COSTS;
+        for (int n : new int[]{1, 3, 6, 9, Main.PARALLEL_TERMS + 1}) {
+            double[] selectivities = new double[n];
+            for (int i = 0; i < n; i++) {
+                selectivities[i] = Math.round(random.nextDouble() * 100) / 100.0;
+            }
+            lines.add(Arrays.toString(selectivities).replaceAll("[\\[\\],]", ""));
+            expected.add(new Optimizer(selectivities, costModel, Optimizer.Enumeration.SUBMASKS).call().toString());
+        }
+
+        Path queries = folder.newFile("query.txt").toPath();
+        Path config = Fixtures.config(folder);
+        Files.write(queries, lines, StandardCharsets.UTF_8);
+
+        Process process = Fixtures.java("-D" + OptimizerMetrics.PROPERTY + "=dump", "Main", queries.toString(),
+                config.toString()).start();
+        String output = Fixtures.output(process);
+        assertThat(process.waitFor(), is(0));
+
+        int from = 0;
+        for (String plan : expected) {
+            int n = plan.split("\n")[1].split(" ").length;
+            assertThat(output.indexOf(plan, from), is(from));
+            Matcher counts = COUNTS.matcher(output);
+            assertThat(counts.find(from + plan.length()), is(true));
+            assertThat(counts.start(), is(from + plan.length()));
+
+            long pairs = Long.parseLong(counts.group(1));
+            long pruned = Long.parseLong(counts.group(2)) + Long.parseLong(counts.group(3));
+            long improvements = Long.parseLong(counts.group(4));
+            // every non-empty S paired with every non-empty submask of its complement
+            assertEquals((long) Math.pow(3, n) - (2L << n) + 1, pairs);
+            assertThat(pruned + improvements, lessThanOrEqualTo(pairs));
+            assertThat(improvements, n > 1 ? greaterThan(0L) : is(0L));
+            from = counts.end() + System.lineSeparator().length();
+        }
+        assertThat(from, is(output.length()));
+    }
+}
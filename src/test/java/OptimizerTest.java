@@ -6,6 +6,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class OptimizerTest {
 
@@ -21,6 +25,8 @@ public class OptimizerTest {
     private static List<Boolean> b4;
     private static List<Boolean> b5;
 
+    private static Properties costs;
+
     @BeforeClass
     public static void setUp() {
         empty =   Collections.emptyList();
@@ -28,6 +34,14 @@ public class OptimizerTest {
         pair =    Arrays.asList("a", "b");
         triplet = Arrays.asList("a", "b", "c");
         many =    Arrays.asList("a", "b", "c", "d", "e");
+
+        costs = new Properties();
+        costs.setProperty("r", "1");
+        costs.setProperty("t", "2");
+        costs.setProperty("l", "1");
+        costs.setProperty("m", "16");
+        costs.setProperty("a", "2");
+        costs.setProperty("f", "4");
     }
 
     @Test
@@ -85,4 +99,299 @@ public class OptimizerTest {
         assertEquals(Optimizer.bitIntersection(b3, b5), Arrays.asList(true, true, true, false, false, false));
         assertEquals(Optimizer.bitIntersection(b2, b5), Arrays.asList(false, true, false, false, false, false));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testVisitOrder() throws Exception {
+        assertThat(Optimizer.visitOrder(1), is(new int[]{1}));
+        assertThat(Optimizer.visitOrder(2), is(new int[]{2, 1, 3}));
+        assertThat(Optimizer.visitOrder(3), is(new int[]{4, 2, 1, 6, 5, 3, 7}));
+        assertThat(Optimizer.visitOrder(10).length, is(1023));
+    }
+
+    @Test
+    public void testOptimalPlan() throws Exception {
+        String plan = new Optimizer(Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6), costs).call().toString();
+        assertThat(plan, containsString("if (t3[o3[i]] && ((t2[o2[i]] & t4[o4[i]]))) {\n" +
+                "\tanswer[j] = i;\n" +
+                "\tj += (t1[o1[i]] & t5[o5[i]]);\n" +
+                "}\n"));
+        assertThat(plan, endsWith("cost: 13.495999999999999\n"));
+    }
+
+    @Test
+    public void testSubmaskEnumerationScaling() throws Exception {
+        Random random = new Random(42);
+        for (int n = 1; n <= 9; n++) {
+            List<Double> selectivities = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                selectivities.add(Math.round(random.nextDouble() * 10) / 10.0);
+            }
+
+            Optimizer allPairs = new Optimizer(selectivities, costs, Optimizer.Enumeration.ALL_PAIRS);
+            Optimizer submasks = new Optimizer(selectivities, costs, Optimizer.Enumeration.SUBMASKS);
+            assertEquals(allPairs.call().toString(), submasks.call().toString());
+
+            long subSets = (1L << n) - 1;
+            long disjointPairs = (long) Math.pow(3, n) - 2 * (1L << n) + 1;
+            assertThat(allPairs.pairCount(), is(subSets * subSets));
+            assertThat(submasks.pairCount(), is(disjointPairs));
+        }
+    }
+
+    @Test
+    public void testParallelWavesMatchSequential() throws Exception {
+        Random random = new Random(7);
+        for (int threads : new int[]{1, 2, 4}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            for (int n = 1; n <= 10; n++) {
+                List<Double> selectivities = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    // coarse values so that ties between candidate plans actually happen
+                    selectivities.add((1 + random.nextInt(4)) / 4.0);
+                }
+
+                Optimizer sequential = new Optimizer(selectivities, costs, Optimizer.Enumeration.SUBMASKS);
+                Optimizer parallel = new Optimizer(selectivities, costs, Optimizer.Enumeration.PARALLEL_WAVES, pool);
+                assertEquals(sequential.call().toString(), parallel.call().toString());
+                assertThat(parallel.pairCount(), is(sequential.pairCount()));
+            }
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentMixedCostModels() throws Exception {
+        List<CostModel> costModels = Arrays.asList(
+                Fixtures.COSTS,
+                new CostModel(2, 1, 1, 4, 1, 2),
+                new CostModel(1, 40, 2, 60, 3, 1));
+        Random random = new Random(3);
+        List<List<Double>> queries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            List<Double> selectivities = new ArrayList<>();
+            for (int j = 1 + random.nextInt(7); j > 0; j--) {
+                selectivities.add(Math.round(random.nextDouble() * 100) / 100.0);
+            }
+            queries.add(selectivities);
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            expected.add(new Optimizer(queries.get(i), costModels.get(i % costModels.size())).call().toString());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Plan>> results = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(executor.submit(new Optimizer(queries.get(i), costModels.get(i % costModels.size()))));
+        }
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(expected.get(i), results.get(i).get().toString());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testVectorCostAppliesToWholeQuery() throws Exception {
+        double[] selectivities = {0.7, 0.4, 0.2, 0.3, 0.6};
+        CostModel scalar = Fixtures.COSTS;
+        String scalarPlan = new Optimizer(selectivities, scalar, Optimizer.Enumeration.SUBMASKS).call().toString();
+
+        // SIMD far too slow: never chosen, same plan as without it
+        CostModel slow = new CostModel(2, 4, 1, 16, 1, 2, 100);
+        assertEquals(scalarPlan, new Optimizer(selectivities, slow, Optimizer.Enumeration.SUBMASKS).call().toString());
+
+        // SIMD cheap: one vectorized no-branch term over every term, found the same way by every optimizer
+        CostModel fast = new CostModel(2, 4, 1, 16, 1, 2, 0.5);
+        Optimizer.SubSet plan = new Optimizer(selectivities, fast, Optimizer.Enumeration.SUBMASKS).optimize();
+        assertThat(plan.simd, is(true));
+        assertThat(plan.b, is(true));
+        assertThat(plan.L, is(nullValue()));
+        assertThat(plan.c, is(fast.vectorCost(5, 0.0)));
+
+        String fastPlan = plan.optimalAsString(selectivities, null);
+        assertThat(fastPlan, containsString("// evaluated on SIMD lanes"));
+        assertThat(fastPlan, containsString("j += (t1[o1[i]] & t2[o2[i]] & t3[o3[i]] & t4[o4[i]] & t5[o5[i]]);"));
+        assertEquals(fastPlan, new Optimizer(selectivities, fast, Optimizer.Enumeration.PARALLEL_WAVES).call().toString());
+        assertEquals(fastPlan, new FlatOptimizer(selectivities, fast).call().toString());
+        assertEquals(fastPlan, new HeuristicOptimizer(selectivities, fast).call().toString());
+
+        // cheaper than a single scalar group but not than the best split: the split wins
+        CostModel close = new CostModel(2, 4, 1, 16, 1, 2, 5.5);
+        Optimizer.SubSet split = new Optimizer(selectivities, close, Optimizer.Enumeration.SUBMASKS).optimize();
+        assertThat(split.L, is(notNullValue()));
+        assertThat(split.optimalAsString(selectivities, null), not(containsString("SIMD")));
+        assertThat(Optimizer.parseCostModel(costs), is(scalar));
+    }
+
+    @Test
+    public void testTermCostsEqualToFKeepPlans() throws Exception {
+        CostModel costModel = Fixtures.COSTS;
+        double[] selectivities = {0.7, 0.4, 0.2, 0.3, 0.6};
+        double[] costs = new double[selectivities.length];
+        Arrays.fill(costs, costModel.f);
+
+        String plan = new Optimizer(selectivities, costModel, Optimizer.Enumeration.SUBMASKS).call().toString();
+        assertEquals(plan, new Optimizer(selectivities, costs, costModel, Optimizer.Enumeration.SUBMASKS).call().toString());
+        assertEquals(plan, new FlatOptimizer(selectivities, costs, costModel).call().toString());
+    }
+
+    @Test
+    public void testExpensiveTermIsEvaluatedLater() throws Exception {
+        CostModel costModel = Fixtures.COSTS;
+        double[] selectivities = {0.3, 0.6};
+
+        // uniform costs: the more selective term goes first, alone or in one group with the other
+        Plan cheap = new Optimizer(selectivities, costModel, Optimizer.Enumeration.SUBMASKS).call();
+        assertThat(cheap.group(0)[0], is(0));
+
+        // a regex-like first term: the cheap term filters rows before it runs
+        Plan expensive = new Optimizer(selectivities, new double[]{60, 2}, costModel, Optimizer.Enumeration.SUBMASKS).call();
+        assertThat(expensive.group(0), is(new int[]{1}));
+        assertThat(expensive.group(1), is(new int[]{0}));
+        // r + 2 + t for the cheap term, a misprediction term and the expensive term as a no-branch term: r + 60 + a
+        assertThat(expensive.cost(), closeTo(1 + 2 + 2 + 16 * 0.4 + 0.6 * (1 + 60 + 2), 1e-9));
+    }
+
+    @Test
+    public void testTermCostsAgreeAcrossOptimizers() throws Exception {
+        CostModel costModel = Optimizer.parseCostModel(costs);
+        Random random = new Random(29);
+        for (int query = 0; query < 50; query++) {
+            double[] selectivities = new double[1 + random.nextInt(8)];
+            double[] termCosts = new double[selectivities.length];
+            for (int i = 0; i < selectivities.length; i++) {
+                selectivities[i] = (1 + random.nextInt(10)) / 10.0;
+                termCosts[i] = 1 + random.nextInt(40);
+            }
+            Plan plan = new Optimizer(selectivities, termCosts, costModel, Optimizer.Enumeration.SUBMASKS).call();
+            assertEquals(plan.toString(),
+                    new Optimizer(selectivities, termCosts, costModel, Optimizer.Enumeration.PARALLEL_WAVES).call().toString());
+            assertEquals(plan.toString(), new FlatOptimizer(selectivities, termCosts, costModel).call().toString());
+            assertThat(new HeuristicOptimizer(selectivities, termCosts, costModel).call().cost(),
+                    greaterThanOrEqualTo(plan.cost() - 1e-9));
+        }
+    }
+
+    @Test
+    public void testReoptimizeMatchesFullRun() throws Exception {
+        CostModel costModel = Optimizer.parseCostModel(costs);
+        Random random = new Random(23);
+        for (Optimizer.Enumeration enumeration : Arrays.asList(Optimizer.Enumeration.SUBMASKS, Optimizer.Enumeration.PARALLEL_WAVES)) {
+            for (int query = 0; query < 30; query++) {
+                double[] selectivities = new double[1 + random.nextInt(9)];
+                for (int i = 0; i < selectivities.length; i++) {
+                    selectivities[i] = (1 + random.nextInt(10)) / 10.0;
+                }
+                Optimizer optimizer = new Optimizer(selectivities.clone(), costModel, enumeration);
+                optimizer.optimize();
+
+                // several refreshes in a row, each one checked against an optimizer built from scratch
+                for (int update = 0; update < 4; update++) {
+                    int term = random.nextInt(selectivities.length);
+                    selectivities[term] = (1 + random.nextInt(10)) / 10.0;
+                    Plan plan = optimizer.reoptimize(term, selectivities[term]);
+
+                    Optimizer fresh = new Optimizer(selectivities.clone(), costModel, Optimizer.Enumeration.SUBMASKS);
+                    assertEquals(fresh.call().toString(), plan.toString());
+                    assertThat(optimizer.pairCount(), lessThanOrEqualTo(fresh.pairCount()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReoptimizeOnlyVisitsSubsetsWithTheTerm() throws Exception {
+        int n = 10;
+        double[] selectivities = new double[n];
+        Arrays.fill(selectivities, 0.5);
+        double[] original = selectivities.clone();
+        Optimizer optimizer = new Optimizer(selectivities, Optimizer.parseCostModel(costs), Optimizer.Enumeration.SUBMASKS);
+        optimizer.optimize();
+        long fullPairs = optimizer.pairCount();
+
+        optimizer.reoptimize(3, 0.1);
+        // every split of every subset that contains the term: 2 * 3^(n - 1) - 2^n ordered pairs
+        assertThat(optimizer.pairCount(), is(2 * (long) Math.pow(3, n - 1) - (1L << n)));
+        assertThat(optimizer.pairCount(), lessThan(fullPairs));
+        assertThat(selectivities, is(original));
+    }
+
+    @Test
+    public void testReoptimizeLeavesEarlierPlansUnchanged() throws Exception {
+        double[] selectivities = {0.7, 0.4, 0.2, 0.3, 0.6};
+        Optimizer optimizer = new Optimizer(selectivities, Optimizer.parseCostModel(costs), Optimizer.Enumeration.SUBMASKS);
+        Plan before = optimizer.call();
+        String text = before.toString();
+        String c = before.toC();
+        double cost = before.costAt(selectivities);
+        assertThat(cost, closeTo(before.cost(), 1e-9));
+
+        Plan after = optimizer.reoptimize(2, 0.95);
+        assertThat(after.toString(), not(text));
+        assertEquals(text, before.toString());
+        assertEquals(c, before.toC());
+        assertThat(before.costAt(selectivities), is(cost));
+
+        // the same holds for a plan whose text was never rendered before the change
+        Optimizer fresh = new Optimizer(selectivities, Optimizer.parseCostModel(costs), Optimizer.Enumeration.SUBMASKS);
+        Plan unrendered = fresh.call();
+        fresh.reoptimize(2, 0.95);
+        assertEquals(text, unrendered.toString());
+        assertEquals(c, unrendered.toC());
+        assertThat(unrendered.costAt(selectivities), is(cost));
+    }
+
+    /**
+     * Optimizes a query of {@link #TERMS} terms, then changes one of its terms three times, and prints the
+     * metrics totals after the optimization and after the last change. Runs in a JVM of its own, with metrics on.
+     */
+    public static class Reoptimizations {
+
+        static final int TERMS = 8;
+
+        public static void main(String[] args) {
+            double[] selectivities = new double[TERMS];
+            Arrays.fill(selectivities, 0.5);
+            Optimizer optimizer = new Optimizer(selectivities, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+            optimizer.optimize();
+            System.out.println(totals());
+            for (double selectivity : new double[]{0.1, 0.9, 0.3}) {
+                optimizer.reoptimize(3, selectivity);
+            }
+            System.out.println(totals());
+        }
+
+        private static String totals() {
+            OptimizerMetrics metrics = OptimizerMetrics.INSTANCE;
+            return metrics.getOptimizations() + " " + metrics.getReoptimizations() + " " + metrics.getPairs() + " "
+                    + metrics.getGenerateNanos() + " " + metrics.getInitializeNanos();
+        }
+    }
+
+    @Test
+    public void testReoptimizeMetrics() throws Exception {
+        Process process = Fixtures.java("-D" + OptimizerMetrics.PROPERTY + "=on", Reoptimizations.class.getName())
+                .redirectErrorStream(true).start();
+        String output = Fixtures.output(process);
+        assertThat(output, process.waitFor(), is(0));
+        String[] lines = output.split("\\R");
+        String[] optimized = lines[0].split(" ");
+        String[] reoptimized = lines[1].split(" ");
+
+        int n = Reoptimizations.TERMS;
+        long pairs = (long) Math.pow(3, n) - (2L << n) + 1;
+        long reoptimizePairs = 2 * (long) Math.pow(3, n - 1) - (1L << n);
+        assertThat(optimized, is(new String[]{"1", "0", String.valueOf(pairs), optimized[3], optimized[4]}));
+        assertThat(Long.parseLong(optimized[3]), greaterThan(0L));
+
+        // three more reoptimizations, adding their pairs but neither an optimization nor the setup of the table
+        assertThat(reoptimized, is(new String[]{"1", "3", String.valueOf(pairs + 3 * reoptimizePairs),
+                optimized[3], optimized[4]}));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReoptimizeNeedsAnOptimization() throws Exception {
+        new Optimizer(new double[]{0.5, 0.5}, Optimizer.parseCostModel(costs), Optimizer.Enumeration.SUBMASKS).reoptimize(0, 0.1);
+    }
+}
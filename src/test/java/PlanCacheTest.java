@@ -0,0 +1,153 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PlanCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSortedTerms() throws Exception {
+        assertThat(PlanCache.sortedTerms(new double[]{0.7, 0.4, 0.2, 0.3, 0.6}), is(new int[]{2, 3, 1, 4, 0}));
+        assertThat(PlanCache.sortedTerms(new double[]{0.5, 0.5, 0.1}), is(new int[]{2, 0, 1}));
+    }
+
+    @Test
+    public void testPermutationHitRenamesTerms() throws Exception {
+        PlanCache cache = new PlanCache(16);
+
+        String first = cache.optimize(Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6), Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).toString();
+        assertThat(first, containsString("if (t3[o3[i]] && ((t2[o2[i]] & t4[o4[i]]))) {\n"));
+        assertThat(first, containsString("\tj += (t1[o1[i]] & t5[o5[i]]);\n"));
+
+        String permuted = cache.optimize(Arrays.asList(0.2, 0.3, 0.4, 0.6, 0.7), Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).toString();
+        assertThat(permuted, startsWith("==================================================================\n" +
+                "0.2 0.3 0.4 0.6 0.7\n"));
+        assertThat(permuted, containsString("if (t1[o1[i]] && ((t2[o2[i]] & t3[o3[i]]))) {\n"));
+        assertThat(permuted, containsString("\tj += (t4[o4[i]] & t5[o5[i]]);\n"));
+
+        assertThat(cache.misses(), is(1L));
+        assertThat(cache.hits(), is(1L));
+    }
+
+    @Test
+    public void testCostModelIsPartOfKey() throws Exception {
+        PlanCache cache = new PlanCache(16);
+        List<Double> query = Arrays.asList(0.8, 0.5, 0.3, 0.2);
+
+        cache.optimize(query, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        cache.optimize(query, new CostModel(2, 4, 1, 16, 1, 2), Optimizer.Enumeration.SUBMASKS);
+        cache.optimize(query, new CostModel(2, 1, 1, 4, 1, 2), Optimizer.Enumeration.SUBMASKS);
+
+        assertThat(cache.hits(), is(1L));
+        assertThat(cache.misses(), is(2L));
+    }
+
+    @Test
+    public void testTermCostsArePartOfKey() throws Exception {
+        PlanCache cache = new PlanCache(16);
+        double[] query = {0.8, 0.3, 0.3};
+
+        Plan plan = cache.optimize(query, new double[]{2, 40, 2}, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        // the same (selectivity, cost) pairs in another order hit
+        Plan permuted = cache.optimize(new double[]{0.3, 0.8, 0.3}, new double[]{2, 2, 40}, Fixtures.COSTS,
+                Optimizer.Enumeration.SUBMASKS);
+        cache.optimize(query, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+
+        assertThat(cache.hits(), is(1L));
+        assertThat(cache.misses(), is(2L));
+        assertThat(permuted.cost(), is(plan.cost()));
+        assertEquals(new Optimizer(query, new double[]{2, 40, 2}, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).call().toString(),
+                plan.toString());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        PlanCache cache = new PlanCache(2);
+        List<Double> a = Arrays.asList(0.1, 0.2);
+        List<Double> b = Arrays.asList(0.3, 0.4);
+        List<Double> c = Arrays.asList(0.5, 0.6);
+
+        cache.optimize(a, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        cache.optimize(b, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        cache.optimize(a, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        cache.optimize(c, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertThat(cache.evictions(), is(1L));
+        assertThat(cache.size(), is(2));
+
+        cache.optimize(a, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertThat(cache.hits(), is(2L));
+        cache.optimize(b, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertThat(cache.misses(), is(4L));
+    }
+
+    @Test
+    public void testLargePlansWeighMore() throws Exception {
+        PlanCache cache = new PlanCache(16, 10);
+        cache.optimize(Arrays.asList(0.1, 0.2, 0.3, 0.4), Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        cache.optimize(Arrays.asList(0.5, 0.6, 0.7, 0.8), Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertThat(cache.terms(), is(8L));
+
+        // 13 terms do not fit in 10: the least recently used plan goes, though there is room for 16 plans
+        cache.optimize(Arrays.asList(0.1, 0.3, 0.5, 0.7, 0.9), Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertThat(cache.evictions(), is(1L));
+        assertThat(cache.size(), is(2));
+        assertThat(cache.terms(), is(9L));
+        cache.optimize(Arrays.asList(0.5, 0.6, 0.7, 0.8), Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertThat(cache.hits(), is(1L));
+    }
+
+    /**
+     * Concurrent misses on one query run a single optimization, which every caller then shares.
+     */
+    @Test
+    public void testConcurrentMissesOptimizeOnce() throws Exception {
+        PlanCache cache = new PlanCache(16);
+        double[] query = {0.7, 0.4, 0.2, 0.3, 0.6, 0.5, 0.9, 0.1, 0.8, 0.35, 0.45, 0.55, 0.65};
+        String expected = new Optimizer(query, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).call().toString();
+
+        int threads = 8;
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<String>> plans = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            plans.add(callers.submit(() -> {
+                start.await();
+                return cache.optimize(query, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).toString();
+            }));
+        }
+        for (Future<String> plan : plans) {
+            assertEquals(expected, plan.get());
+        }
+        callers.shutdown();
+
+        assertThat(cache.misses(), is(1L));
+        assertThat(cache.hits(), is((long) threads - 1));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.newFile("plans.bin").toPath();
+        List<Double> query = Arrays.asList(0.8, 0.8, 0.9, 0.7, 0.7, 0.7);
+
+        PlanCache cache = new PlanCache(16);
+        String expected = cache.optimize(query, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).toString();
+        cache.save(file);
+
+        PlanCache loaded = new PlanCache(16);
+        loaded.load(file);
+        assertThat(loaded.size(), is(1));
+        assertEquals(expected, loaded.optimize(query, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).toString());
+        assertThat(loaded.hits(), is(1L));
+    }
+}
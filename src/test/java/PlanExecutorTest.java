@@ -0,0 +1,167 @@
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.*;
+
+public class PlanExecutorTest {
+
+    private static final int ROWS = 10000;
+
+    /**
+     * Row indices where every term passes, computed without any plan.
+     */
+    private static int[] expected(boolean[][] t, int[][] o) {
+        int[] answer = new int[ROWS];
+        int j = 0;
+        for (int i = 0; i < ROWS; i++) {
+            boolean pass = true;
+            for (int term = 0; term < t.length; term++) {
+                pass = pass && t[term][o[term][i]];
+            }
+            if (pass) {
+                answer[j++] = i;
+            }
+        }
+        return Arrays.copyOf(answer, j);
+    }
+
+    private static int[] run(Selection selection, boolean[][] t, int[][] o) {
+        int[] answer = new int[ROWS];
+        int j = selection.run(t, o, ROWS, answer);
+        return Arrays.copyOf(answer, j);
+    }
+
+    @Test
+    public void testPlansSelectMatchingRows() throws Exception {
+        Random random = new Random(11);
+        for (int query = 0; query < 50; query++) {
+            int n = 1 + random.nextInt(8);
+            List<Double> selectivities = new ArrayList<>();
+            boolean[][] t = new boolean[n][];
+            int[][] o = new int[n][];
+            for (int i = 0; i < n; i++) {
+                selectivities.add(Math.round(random.nextDouble() * 10) / 10.0);
+                t[i] = PlanExecutor.table(selectivities.get(i));
+                o[i] = PlanExecutor.column(ROWS, random);
+            }
+
+            int[] expected = expected(t, o);
+            assertThat(run(new PlanExecutor(new Optimizer(selectivities, Fixtures.COSTS).optimize()), t, o), is(expected));
+            assertThat(run(new PlanExecutor(Optimizer.singleGroup(selectivities, Fixtures.COSTS, false)), t, o), is(expected));
+            assertThat(run(new PlanExecutor(Optimizer.singleGroup(selectivities, Fixtures.COSTS, true)), t, o), is(expected));
+
+            assertThat(run(PlanCompiler.compile(new Optimizer(selectivities, Fixtures.COSTS).optimize()), t, o), is(expected));
+            assertThat(run(PlanCompiler.compile(Optimizer.singleGroup(selectivities, Fixtures.COSTS, false)), t, o), is(expected));
+            assertThat(run(PlanCompiler.compile(Optimizer.singleGroup(selectivities, Fixtures.COSTS, true)), t, o), is(expected));
+        }
+    }
+
+    @Test
+    public void testCompiledLoopMatchesPrintedPlan() throws Exception {
+        Optimizer.SubSet plan = new Optimizer(Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6), Fixtures.COSTS).optimize();
+        assertThat(PlanCompiler.loop(new PlanExecutor(plan)), is(
+                "if (t3[o3[i]] && (t2[o2[i]] & t4[o4[i]])) {\n" +
+                "\tanswer[j] = i;\n" +
+                "\tj += (t1[o1[i]] & t5[o5[i]]) ? 1 : 0;\n" +
+                "}\n"));
+
+        Optimizer.SubSet noBranch = Optimizer.singleGroup(Arrays.asList(0.7, 0.8), Fixtures.COSTS, true);
+        assertThat(PlanCompiler.loop(new PlanExecutor(noBranch)), is(
+                "answer[j] = i;\n" +
+                "j += (t1[o1[i]] & t2[o2[i]]) ? 1 : 0;\n"));
+    }
+
+    @Test
+    public void testCompiledPlansAreCachedByShape() throws Exception {
+        Selection first = PlanCompiler.compile(Optimizer.singleGroup(Arrays.asList(0.1, 0.2, 0.3), Fixtures.COSTS, true));
+        Selection second = PlanCompiler.compile(Optimizer.singleGroup(Arrays.asList(0.9, 0.8, 0.7), Fixtures.COSTS, true));
+        assertThat(second, is(sameInstance(first)));
+    }
+
+    @Test
+    public void testVectorizedNoBranch() throws Exception {
+        Selection probe = PlanExecutor.vectorized(new int[]{0});
+        Assume.assumeNotNull(probe);
+
+        Random random = new Random(17);
+        for (int query = 0; query < 20; query++) {
+            int n = 1 + random.nextInt(8);
+            boolean[][] t = new boolean[n][];
+            int[][] o = new int[n][];
+            for (int i = 0; i < n; i++) {
+                t[i] = PlanExecutor.table(Math.round(random.nextDouble() * 10) / 10.0);
+                o[i] = PlanExecutor.column(ROWS, random);
+            }
+            int[] terms = new int[n];
+            for (int i = 0; i < n; i++) {
+                terms[i] = n - 1 - i;
+            }
+
+            int[] expected = expected(t, o);
+            assertThat(run(PlanExecutor.vectorized(terms), t, o), is(expected));
+
+            // a row count that leaves a partial vector for the scalar tail
+            int[] answer = new int[ROWS];
+            int rows = ROWS - 3;
+            int j = PlanExecutor.vectorized(terms).run(t, o, rows, answer);
+            int[] head = Arrays.stream(expected).filter(row -> row < rows).toArray();
+            assertThat(Arrays.copyOf(answer, j), is(head));
+        }
+    }
+
+    /**
+     * The widened tables are reused across scans of the same tables, and replaced when a scan passes other ones.
+     */
+    @Test
+    public void testVectorizedNewTables() throws Exception {
+        Selection vectorized = PlanExecutor.vectorized(new int[]{0, 1});
+        Assume.assumeNotNull(vectorized);
+
+        Random random = new Random(23);
+        int[][] o = {PlanExecutor.column(ROWS, random), PlanExecutor.column(ROWS, random)};
+        boolean[][] t = {PlanExecutor.table(0.5), PlanExecutor.table(0.7)};
+        assertThat(run(vectorized, t, o), is(expected(t, o)));
+        assertThat(run(vectorized, t, o), is(expected(t, o)));
+
+        boolean[][] other = {t[0], PlanExecutor.table(0.2)};
+        assertThat(run(vectorized, other, o), is(expected(other, o)));
+        assertThat(run(vectorized, t, o), is(expected(t, o)));
+    }
+
+    @Test
+    public void testSimdPlansRunVectorizedOrScalar() throws Exception {
+        CostModel simd = new CostModel(2, 4, 1, 16, 1, 2, 0.5);
+        List<Double> selectivities = Arrays.asList(0.5, 0.6, 0.4);
+        Optimizer.SubSet plan = new Optimizer(selectivities, simd).optimize();
+        assertThat(plan.simd, is(true));
+
+        Random random = new Random(19);
+        boolean[][] t = new boolean[3][];
+        int[][] o = new int[3][];
+        for (int i = 0; i < 3; i++) {
+            t[i] = PlanExecutor.table(selectivities.get(i));
+            o[i] = PlanExecutor.column(ROWS, random);
+        }
+
+        int[] expected = expected(t, o);
+        assertThat(run(new PlanExecutor(plan), t, o), is(expected));
+        assertThat(run(PlanExecutor.of(plan), t, o), is(expected));
+        assertThat(run(PlanCompiler.compile(plan), t, o), is(expected));
+        if (PlanExecutor.vectorized(new int[]{0}) != null) {
+            assertThat(PlanExecutor.of(plan), is(not(instanceOf(PlanExecutor.class))));
+        }
+    }
+
+    @Test
+    public void testTableSelectivity() throws Exception {
+        boolean[] table = PlanExecutor.table(0.25);
+        int passing = 0;
+        for (boolean pass : table) {
+            passing += pass ? 1 : 0;
+        }
+        assertThat(passing, is(PlanExecutor.DOMAIN / 4));
+    }
+}
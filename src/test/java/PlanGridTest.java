@@ -0,0 +1,105 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+public class PlanGridTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCellCentersGetTheOptimalPlan() throws Exception {
+        int steps = 5;
+        PlanGrid grid = PlanGrid.build(3, steps, Fixtures.COSTS);
+        for (int cell = 0; cell < grid.cells(); cell++) {
+            double[] center = {(cell % steps + 0.5) / steps, (cell / steps % steps + 0.5) / steps,
+                    (cell / steps / steps + 0.5) / steps};
+            String optimal = new Optimizer(center, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).call().toString();
+            assertEquals(optimal, grid.lookup(center).plan().toString());
+        }
+    }
+
+    @Test
+    public void testRegretBoundHoldsAtGridVertices() throws Exception {
+        int steps = 6;
+        PlanGrid grid = PlanGrid.build(3, steps, Fixtures.COSTS);
+        Random random = new Random(31);
+        for (int query = 0; query < 200; query++) {
+            double[] selectivities = new double[3];
+            for (int i = 0; i < selectivities.length; i++) {
+                selectivities[i] = random.nextInt(steps + 1) / (double) steps;
+            }
+            PlanGrid.Entry entry = grid.lookup(selectivities);
+            double optimal = new Optimizer(selectivities, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).optimize().c;
+            assertThat(entry.plan().cost(), greaterThanOrEqualTo(optimal - 1e-9));
+            assertThat(entry.plan().cost() - optimal, lessThanOrEqualTo(entry.regret() + 1e-9));
+            assertThat(entry.regret(), lessThanOrEqualTo(grid.regret()));
+        }
+    }
+
+    /**
+     * Between the vertices the regret is not bounded by the grid, but the plan must still be a valid, finitely priced
+     * plan for the query, never cheaper than the optimal one.
+     */
+    @Test
+    public void testInteriorPointsGetAPricedPlan() throws Exception {
+        PlanGrid grid = PlanGrid.build(3, 6, Fixtures.COSTS);
+        Random random = new Random(53);
+        double worst = 0.0;
+        for (int query = 0; query < 500; query++) {
+            double[] selectivities = {random.nextDouble(), random.nextDouble(), random.nextDouble()};
+            Plan plan = grid.lookup(selectivities).plan();
+            double optimal = new Optimizer(selectivities, Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS).optimize().c;
+            double gap = plan.cost() - optimal;
+
+            assertThat(Double.isFinite(gap), is(true));
+            assertThat(gap, greaterThanOrEqualTo(-1e-9));
+            assertThat(plan.cost(), closeTo(plan.costAt(selectivities), 1e-9));
+            worst = Math.max(worst, gap);
+        }
+        // no guarantee, but on a grid this fine the interior stays within a small multiple of the vertex regret
+        assertThat(worst, lessThan(3 * grid.regret() + 1e-9));
+    }
+
+    @Test
+    public void testNeighboursWithOnePlanShareARegion() throws Exception {
+        PlanGrid grid = PlanGrid.build(4, 8, Fixtures.COSTS);
+        assertThat(grid.cells(), is(4096));
+        assertThat(grid.regions(), lessThan(grid.cells() / 10));
+        assertThat(grid.shapes(), lessThanOrEqualTo(grid.regions()));
+
+        // one term: never more than a branching and a no-branch region
+        assertThat(PlanGrid.build(1, 100, Fixtures.COSTS).regions(), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        PlanGrid grid = PlanGrid.build(3, 10, Fixtures.COSTS);
+        Path file = folder.getRoot().toPath().resolve("grid.bin");
+        grid.save(file);
+        assertThat(Files.size(file), lessThan(4L * grid.cells()));
+
+        PlanGrid loaded = PlanGrid.load(file);
+        assertThat(loaded.toString(), is(grid.toString()));
+        assertThat(loaded.costModel(), is(Fixtures.COSTS));
+        Random random = new Random(37);
+        for (int query = 0; query < 100; query++) {
+            double[] selectivities = {random.nextDouble(), random.nextDouble(), random.nextDouble()};
+            assertEquals(grid.lookup(selectivities).plan().toString(), loaded.lookup(selectivities).plan().toString());
+            assertThat(loaded.lookup(selectivities).regret(), is(grid.lookup(selectivities).regret()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongTermCount() throws Exception {
+        PlanGrid.build(2, 4, Fixtures.COSTS).lookup(new double[]{0.5, 0.5, 0.5});
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PlanServerTest {
+
+    private PlanServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new PlanServer(Fixtures.properties(), 0, 2);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return The status code followed by the body of the response.
+     */
+    private String request(String method, String path, String body) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                content.write(buffer, 0, read);
+            }
+        }
+        return status + "\n" + new String(content.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testTextPlansMatchMain() throws Exception {
+        String expected = new Optimizer(Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6), Fixtures.COSTS).call() + "\n"
+                + new Optimizer(Arrays.asList(0.2, 0.1, 0.9), Fixtures.COSTS).call() + "\n";
+        assertEquals("200\n" + expected, request("POST", "/plan", "0.7 0.4 0.2 0.3 0.6\n\n0.2 0.1 0.9\n"));
+    }
+
+    @Test
+    public void testJsonPlansAndCostOverride() throws Exception {
+        String response = request("POST", "/plan?format=json&m=30", "0.7 0.4 0.2 0.3 0.6");
+        Optimizer.SubSet plan = new Optimizer(new double[]{0.7, 0.4, 0.2, 0.3, 0.6},
+                new CostModel(2, 4, 1, 30, 1, 2), Optimizer.Enumeration.SUBMASKS).optimize();
+        assertThat(response, startsWith("200\n[\n{\"selectivities\": [0.7, 0.4, 0.2, 0.3, 0.6], \"cost\": " + plan.c + ", "));
+        assertThat(response, containsString("\"code\": \"" + plan.code(null).replace("\n", "\\n").replace("\t", "\\t") + "\"}"));
+
+        assertThat(request("POST", "/plan?format=json", "0.7 0.4 0.2 0.3 0.6"), containsString(
+                "\"groups\": [[2], [1, 3]], \"noBranch\": [0, 4], \"simd\": false"));
+    }
+
+    @Test
+    public void testBadRequests() throws Exception {
+        assertThat(request("POST", "/plan", "0.7 oops"), startsWith("400\n"));
+        assertThat(request("POST", "/plan?m=lots", "0.7 0.4"), startsWith("400\n"));
+        assertThat(request("GET", "/plan", null), startsWith("405\n"));
+    }
+
+    @Test
+    public void testTooManyTerms() throws Exception {
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i <= HeuristicOptimizer.MAX_TERMS; i++) {
+            query.append(" 0.5");
+        }
+        String response = request("POST", "/plan", "0.7 0.4\n" + query + "\n");
+        assertThat(response, startsWith("400\n"));
+        assertThat(response, containsString("Cannot plan more than " + HeuristicOptimizer.MAX_TERMS + " terms"));
+
+        assertThat(request("GET", "/stats", null), containsString("\"errors\": 1, "));
+        assertThat(request("POST", "/plan", "0.7 0.4"), startsWith("200\n"));
+    }
+
+    @Test
+    public void testConcurrentRequestsAndStats() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        List<Future<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            responses.add(clients.submit(() -> request("POST", "/plan", "0.5 0.6 0.7\n0.1 0.2\n")));
+        }
+        for (Future<String> response : responses) {
+            assertThat(response.get(), startsWith("200\n====="));
+        }
+        clients.shutdown();
+
+        String stats = request("GET", "/stats", null);
+        assertThat(stats, startsWith("200\n{\"requests\": 20, \"queries\": 40, \"errors\": 0, "));
+        assertThat(stats, containsString("\"latencyMicros\": {\"p50\": "));
+    }
+
+    @Test
+    public void testPercentile() throws Exception {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (i + 1) * 1000L;
+        }
+        assertThat(PlanServer.percentile(sorted, 50), is(50L));
+        assertThat(PlanServer.percentile(sorted, 99), is(99L));
+        assertThat(PlanServer.percentile(sorted, 100), is(100L));
+        assertThat(PlanServer.percentile(new long[0], 50), is(0L));
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.*;
+
+public class PlanTest {
+
+    @Test
+    public void testStructure() throws Exception {
+        Plan plan = new Optimizer(Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6), Fixtures.COSTS).call();
+
+        assertThat(plan.groupCount(), is(3));
+        assertThat(plan.group(0), is(new int[]{2}));
+        assertThat(plan.group(1), is(new int[]{1, 3}));
+        assertThat(plan.group(2), is(new int[]{0, 4}));
+        assertThat(plan.noBranch(1), is(false));
+        assertThat(plan.noBranch(2), is(true));
+        assertThat(plan.order(), is(new int[]{2, 1, 3, 0, 4}));
+        assertThat(plan.cost(), is(closeTo(13.496, 1e-9)));
+        assertThat(plan.simd(), is(false));
+
+        // nothing handed out can change the plan
+        plan.group(0)[0] = 4;
+        plan.selectivities()[0] = 0.1;
+        assertThat(plan.group(0), is(new int[]{2}));
+        assertThat(plan.selectivities(), is(new double[]{0.7, 0.4, 0.2, 0.3, 0.6}));
+    }
+
+    @Test
+    public void testSingleGroups() throws Exception {
+        Plan branching = new Plan(Optimizer.singleGroup(Arrays.asList(0.5, 0.5), Fixtures.COSTS, false), new double[]{0.5, 0.5}, null);
+        assertThat(branching.groupCount(), is(1));
+        assertThat(branching.noBranch(0), is(false));
+        assertThat(branching.order(), is(new int[]{0, 1}));
+
+        Plan noBranch = new Plan(Optimizer.singleGroup(Arrays.asList(0.5, 0.5), Fixtures.COSTS, true), new double[]{0.5, 0.5}, null);
+        assertThat(noBranch.groupCount(), is(1));
+        assertThat(noBranch.noBranch(0), is(true));
+    }
+
+    @Test
+    public void testRendering() throws Exception {
+        List<Double> selectivities = Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6);
+        Optimizer.SubSet tree = new Optimizer(selectivities, Fixtures.COSTS).optimize();
+        Plan plan = new Optimizer(selectivities, Fixtures.COSTS).call();
+
+        assertThat(plan.toString(), is(tree.optimalAsString(selectivities)));
+        assertThat(plan.toString(), is(sameInstance(plan.toString())));
+        assertThat(plan.toC(), is(
+                "if (t3[o3[i]] && ((t2[o2[i]] & t4[o4[i]]))) {\n" +
+                "\tanswer[j] = i;\n" +
+                "\tj += (t1[o1[i]] & t5[o5[i]]);\n" +
+                "}\n"));
+        assertThat(plan.toJava(), is(PlanCompiler.loop(new PlanExecutor(tree))));
+    }
+
+    @Test
+    public void testRenamedTerms() throws Exception {
+        // cached under the sorted order 0.2 0.3 0.4 0.6 0.7 and renamed back to the caller's
+        Plan plan = new PlanCache(4).optimize(Arrays.asList(0.7, 0.4, 0.2, 0.3, 0.6), Fixtures.COSTS, Optimizer.Enumeration.SUBMASKS);
+        assertThat(plan.order(), is(new int[]{2, 1, 3, 0, 4}));
+        assertThat(plan.toC(), containsString("if (t3[o3[i]] && ((t2[o2[i]] & t4[o4[i]]))) {\n"));
+    }
+}
@@ -0,0 +1,95 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Runs a plan that is a single no-branch group, "j += (t1[o1[i]] &amp; t2[o2[i]] ...)", on SIMD lanes.
+ *
+ * Each term gathers the function results of a whole vector of rows at once and the lanes are combined with &amp;. The
+ * row ids of the passing lanes are then stored into answer[] by a scalar loop over the lanes, without a branch: every
+ * lane writes its row id at j and only a passing lane moves j past it. The vector API of Java 17 has no compress, so
+ * this store is not vectorized. Rows that do not fill a vector are run one at a time.
+ *
+ * The vector API gathers ints but not booleans, so the function tables are widened to ints. That is done once per
+ * table, on the first scan that reads it, and the widened copy is kept for as long as scans pass the same table
+ * objects; a table must therefore not be changed in place between scans.
+ *
+ * This class needs the jdk.incubator.vector module, so it is only built on Java 17 and later and is only loaded
+ * through {@link PlanExecutor#vectorized(int[])}, which falls back to scalar code without it.
+ */
+final class VectorNoBranch implements Selection {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * The function tables of the terms, with the boolean tables they were widened from.
+     */
+    private static final class Widened {
+
+        final boolean[][] sources;
+        final int[][] tables;
+
+        Widened(boolean[][] t, int[] terms) {
+            sources = new boolean[terms.length][];
+            tables = new int[terms.length][];
+            for (int x = 0; x < terms.length; x++) {
+                sources[x] = t[terms[x]];
+                tables[x] = new int[sources[x].length];
+                for (int v = 0; v < sources[x].length; v++) {
+                    tables[x][v] = sources[x][v] ? 1 : 0;
+                }
+            }
+        }
+
+        boolean of(boolean[][] t, int[] terms) {
+            for (int x = 0; x < terms.length; x++) {
+                if (sources[x] != t[terms[x]]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final int[] terms;
+    private volatile Widened widened;   // Replaced, never changed, so concurrent scans each see a consistent one.
+
+    VectorNoBranch(int[] terms) {
+        this.terms = terms;
+    }
+
+    @Override
+    public int run(boolean[][] t, int[][] o, int rows, int[] answer) {
+        Widened widened = this.widened;
+        if (widened == null || !widened.of(t, terms)) {
+            widened = new Widened(t, terms);
+            this.widened = widened;
+        }
+        int[][] tables = widened.tables;
+
+        int lanes = SPECIES.length();
+        int bound = SPECIES.loopBound(rows);
+        int j = 0;
+        int i = 0;
+        for (; i < bound; i += lanes) {
+            IntVector pass = IntVector.fromArray(SPECIES, tables[0], 0, o[terms[0]], i);
+            for (int x = 1; x < terms.length; x++) {
+                pass = pass.and(IntVector.fromArray(SPECIES, tables[x], 0, o[terms[x]], i));
+            }
+            long matches = pass.compare(VectorOperators.NE, 0).toLong();
+            for (int lane = 0; lane < lanes; lane++) {
+                answer[j] = i + lane;
+                j += (int) (matches >>> lane) & 1;
+            }
+        }
+        for (; i < rows; i++) {
+            int pass = 1;
+            for (int x = 0; x < terms.length; x++) {
+                pass &= tables[x][o[terms[x]][i]];
+            }
+            answer[j] = i;
+            j += pass;
+        }
+        return j;
+    }
+}
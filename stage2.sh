@@ -9,4 +9,4 @@ else
    JAVA=/local/jdk1.8.0_31/bin/java
 fi
 
-$JAVA -cp src/main/java Main $1 $2
+$JAVA -cp src/main/java Main $1 $2 $3 $4